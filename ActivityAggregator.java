@@ -0,0 +1,199 @@
+/**
+ * ActivityAggregator
+ *
+ * Summaries per day, user and space, computed while the records are exported.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Computes the usual pivots of the csv files on the fly and writes them as small csv files
+ * when the export is closed:
+ * <pre>
+ *   summary_days.csv     active users, logins, sessions and activities per day
+ *   summary_users.csv    active days, logins, sessions and activities per user
+ *   summary_spaces.csv   users and activities per space
+ * </pre>
+ * Users, spaces and days are dictionary encoded and counted in primitive arrays, so memory
+ * grows with the number of distinct users and spaces, not with the number of records.
+ * Session durations come from logins with an end time, open sessions are not counted.
+ *
+ * An incremental run first reads the checkpointed part of the csv files with resume(), so
+ * the summaries cover the whole export and not only the records of the last run.
+ */
+public class ActivityAggregator implements RecordSink {
+
+    public static final String FILE_DAYS = "summary_days.csv";
+    public static final String FILE_USERS = "summary_users.csv";
+    public static final String FILE_SPACES = "summary_spaces.csv";
+
+    private final File dir;
+
+    private final StringDictionary days = new StringDictionary();
+    private final StringDictionary users = new StringDictionary();
+    private final StringDictionary spaces = new StringDictionary();
+
+    // --- per day, indexed by day id
+    private final List<BitSet> dayUsers = new ArrayList<BitSet>();
+    private final Counters dayCounts = new Counters();
+
+    // --- per user, indexed by user id
+    private final Counters userCounts = new Counters();
+
+    // --- per space, indexed by space id
+    private final List<BitSet> spaceUsers = new ArrayList<BitSet>();
+    private final Counters spaceCounts = new Counters();
+
+    // --- counter columns
+    private static final int LOGINS = 0;
+    private static final int SESSIONS = 1;
+    private static final int SESSION_SECONDS = 2;
+    private static final int COMMENTS = 3;
+    private static final int UPDATES = 4;
+    private static final int VIEWS = 5;
+
+    /**
+     * @param dir the directory to write the summary files to
+     */
+    public ActivityAggregator (File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Count the records of the previous runs, from the checkpointed part of a csv file.
+     *
+     * @param type the activity type of the csv file
+     * @param file the csv file with a header line
+     * @param size the size of the csv file at the checkpoint
+     */
+    public void resume (ActivityType type, File file, long size) throws IOException {
+        int columns = type.header.split(",").length;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new BoundedInputStream(new FileInputStream(file), size)));
+        try {
+            reader.readLine();
+            String record;
+            while ((record = CsvSink.readRecord(reader)) != null) {
+                String[] values = CsvSink.split(record, columns);
+                if (values.length == columns) write(type, values);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        int day = days.encode(values[0].substring(0, 10));
+        int user = users.encode(values[type.userColumn()]);
+        getBits(dayUsers, day).set(user);
+
+        if (type == ActivityType.LOGINS) {
+            dayCounts.add(day, LOGINS, 1);
+            userCounts.add(user, LOGINS, 1);
+            if (values[1].length() > 0) {
+                long seconds;
+                try {
+                    seconds = TimestampConverter.toEpochSecond(values[1]) - TimestampConverter.toEpochSecond(values[0]);
+                } catch (ParseException e) {
+                    throw new IOException(e);
+                }
+                dayCounts.add(day, SESSIONS, 1);
+                dayCounts.add(day, SESSION_SECONDS, seconds);
+                userCounts.add(user, SESSIONS, 1);
+                userCounts.add(user, SESSION_SECONDS, seconds);
+            }
+            return;
+        }
+
+        int column = type == ActivityType.COMMENTS ? COMMENTS : type == ActivityType.ITEMS_CHANGED ? UPDATES : VIEWS;
+        int space = spaces.encode(values[1]);
+        getBits(spaceUsers, space).set(user);
+        dayCounts.add(day, column, 1);
+        userCounts.add(user, column, 1);
+        spaceCounts.add(space, column, 1);
+    }
+
+    /**
+     * Write the summary files.
+     */
+    public void close () throws IOException {
+        int[] activeDays = new int[users.size()];
+        PrintWriter pw = new PrintWriter(new File(dir, FILE_DAYS));
+        try {
+            pw.println("Day,ActiveUsers,Logins,Sessions,SessionMinutes,AvgSessionMinutes,Comments,Updates,Views");
+            for (int day : days.sortedIds()) {
+                BitSet active = dayUsers.get(day);
+                for (int user = active.nextSetBit(0); user >= 0; user = active.nextSetBit(user + 1)) activeDays[user]++;
+                pw.println(days.decode(day) + "," + active.cardinality() + "," + formatCounts(dayCounts, day));
+            }
+        } finally {
+            pw.close();
+        }
+
+        pw = new PrintWriter(new File(dir, FILE_USERS));
+        try {
+            pw.println("User,ActiveDays,Logins,Sessions,SessionMinutes,AvgSessionMinutes,Comments,Updates,Views");
+            for (int user : users.sortedIds()) {
+                pw.println(CsvSink.escape(users.decode(user)) + "," + activeDays[user] + "," + formatCounts(userCounts, user));
+            }
+        } finally {
+            pw.close();
+        }
+
+        pw = new PrintWriter(new File(dir, FILE_SPACES));
+        try {
+            pw.println("Space,Users,Comments,Updates,Views");
+            for (int space : spaces.sortedIds()) {
+                pw.println(CsvSink.escape(spaces.decode(space)) + "," + spaceUsers.get(space).cardinality() + ","
+                        + spaceCounts.get(space, COMMENTS) + "," + spaceCounts.get(space, UPDATES) + "," + spaceCounts.get(space, VIEWS));
+            }
+        } finally {
+            pw.close();
+        }
+    }
+
+    private static String formatCounts (Counters counts, int id) {
+        long sessions = counts.get(id, SESSIONS);
+        long seconds = counts.get(id, SESSION_SECONDS);
+        String average = sessions == 0 ? "" : String.format(Locale.ROOT, "%.1f", seconds / 60.0 / sessions);
+        return counts.get(id, LOGINS) + "," + sessions + "," + (seconds / 60) + "," + average + ","
+                + counts.get(id, COMMENTS) + "," + counts.get(id, UPDATES) + "," + counts.get(id, VIEWS);
+    }
+
+    private static BitSet getBits (List<BitSet> list, int id) {
+        while (list.size() <= id) list.add(new BitSet());
+        return list.get(id);
+    }
+
+    /**
+     * A fixed number of long counters per id, stored in one growing array.
+     */
+    private static class Counters {
+        private static final int COLUMNS = 6;
+        private long[] values = new long[COLUMNS * 64];
+
+        void add (int id, int column, long delta) {
+            int index = id * COLUMNS + column;
+            if (index >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, index + COLUMNS));
+            values[index] += delta;
+        }
+
+        long get (int id, int column) {
+            int index = id * COLUMNS + column;
+            return index < values.length ? values[index] : 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * ActivityType
+ *
+ * The activity types of the Blueworks Live API resource "activity".
+ *
+ * @version 1.3
+ */
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The activity types requested from the API, with the columns of their csv output and
+ * the record fields needed to fill them.
+ */
+public enum ActivityType {
+    LOGINS ("login", "Time,EndTime,Type,User",
+            "time", "endTime", "type", "user"),
+    COMMENTS ("comment", "Time,Space,Name,Type,Activity,User,IsReply,Category",
+            "timeStamp", "spaceName", "type", "processName", "decisionDiagramName", "subType",
+            "activityType", "activityName", "user", "isReply", "isReply "),
+    ITEMS_CHANGED ("update", "Time,Space,Name,Type,User",
+            "timeStamp", "spaceName", "processName", "type", "user"),
+    ITEMS_VIEWED ("view", "Time,Space,Name,Type,User",
+            "itemName", "timeStamp", "spaceName", "itemType", "user");
+
+    /** name used in messages, e.g. "login records found" */
+    public final String label;
+    /** the csv header line */
+    public final String header;
+    /** the record fields used for the csv output */
+    public final Set<String> fields;
+
+    ActivityType (String label, String header, String... fields) {
+        this.label = label;
+        this.header = header;
+        this.fields = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(fields)));
+    }
+
+    /**
+     * @return the index of the User column, all other types have Time, Space, Name and Type first
+     */
+    public int userColumn () {
+        switch (this) {
+        case LOGINS: return 3;
+        case COMMENTS: return 5;
+        default: return 4;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * ApiClient
+ *
+ * HTTP calls of the Blueworks Live REST API.
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Performs GET requests with Basic Authentication and returns the response body.
+ * <ul>
+ * <li>Responses are requested gzip compressed and decompressed transparently.</li>
+ * <li>Connections are kept alive and reused by HttpURLConnection, as long as responses are read
+ *     to the end and closed, error responses included.</li>
+ * <li>Status 429 and 5xx as well as failed connections are retried with exponential backoff and
+ *     jitter. A Retry-After header of the server is honored and pauses all requests of the
+ *     RateLimiter, not only the retried one.</li>
+ * <li>Any other status fails with an IOException.</li>
+ * </ul>
+ * Only the request is retried, a response that breaks off while it is read fails as a whole.
+ * The client is thread-safe.
+ */
+public class ApiClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int READ_TIMEOUT_MILLIS = 300000;
+    private static final long BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 900000;
+
+    private final String authorization;
+    private final int retries;
+    private final RateLimiter limiter;
+
+    /**
+     * @param user the user name for Basic Authentication
+     * @param password the password
+     * @param retries how often a failed request is repeated
+     * @param limiter the rate limiter shared by all requests
+     */
+    public ApiClient (String user, String password, int retries, RateLimiter limiter) {
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.retries = retries;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Call the API.
+     *
+     * @param apiCall the URL string indicating the api call and parameters
+     * @return the response body, to be closed by the caller
+     * @throws IOException if the call failed, also after the last retry
+     */
+    public InputStream get (String apiCall) throws IOException {
+        URL url = new URL(apiCall);
+        for (int attempt = 0; ; attempt++) {
+            limiter.acquire();
+            String failure;
+            long retryAfter = -1;
+            int status;
+            HttpURLConnection connection = null;
+            try {
+                connection = openConnection(url);
+                status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    InputStream in = connection.getInputStream();
+                    if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) in = new GZIPInputStream(in);
+                    return in;
+                }
+                failure = "HTTP " + status + " " + connection.getResponseMessage();
+                discard(connection);
+            } catch (UnknownHostException e) {
+                throw e;
+            } catch (IOException e) {
+                status = -1;
+                failure = e.toString();
+            }
+            if (status > 0) {
+                if (status != 429 && status / 100 != 5) {
+                    throw new IOException("Error calling the Blueworks Live REST API: " + failure);
+                }
+                retryAfter = parseRetryAfter(connection.getHeaderField("Retry-After"));
+            }
+
+            if (attempt >= retries) {
+                throw new IOException("Error calling the Blueworks Live REST API: " + failure + ", gave up after " + (attempt + 1) + " attempts");
+            }
+            long delay = retryAfter >= 0 ? retryAfter : backoff(attempt);
+            System.err.println("API call failed (" + failure + "), retrying in " + (delay + 500) / 1000 + " s");
+            if (retryAfter >= 0) limiter.pause(delay);
+            else RateLimiter.sleep(delay);
+        }
+    }
+
+    /**
+     * Open the connection including the headers that must be present on every API call.
+     */
+    private HttpURLConnection openConnection (URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Read and close the body of an error response, so that the connection can be reused.
+     */
+    private static void discard (HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        if (in == null) return;
+        try {
+            IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        } catch (IOException e) {
+            // the connection is not reused
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return exponential backoff with jitter, between half and all of the doubled delay
+     */
+    private static long backoff (int attempt) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @param value the Retry-After header, seconds or an HTTP date
+     * @return the delay in milliseconds, -1 if there is none
+     */
+    static long parseRetryAfter (String value) {
+        if (value == null) return -1;
+        value = value.trim();
+        long millis;
+        try {
+            millis = Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                millis = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis();
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+        return Math.max(0, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+    }
+}
@@ -6,22 +6,42 @@
  * csv files for further analysis.
  * 
  * @author Martin Westphal, westphal@de.ibm.com
- * @version 1.2
+ * @version 1.3
  */
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
@@ -29,7 +49,7 @@ import org.apache.wink.json4j.JSONObject;
 /**
  * 
  * Compile:
- *    javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlUserStats.java
+ *    javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar *.java
  * 
  * Run it:
  *    java -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlUserStats <user> <password> <account> 
@@ -38,16 +58,13 @@ import org.apache.wink.json4j.JSONObject;
 public class BwlUserStats {
 
     // --- The Blueworks Live server info and login
-    private final static String REST_API_SERVER = "https://www.blueworkslive.com";
-    private static String REST_API_USERNAME = "";
-    private static String REST_API_PASSWORD = "";
-    private static String REST_API_ACCOUNT_NAME = "";
-
-    // --- Date formats
-    private static SimpleDateFormat DATE_INPUTFORMAT = new SimpleDateFormat("yyyy-MM-dd");
-    private static SimpleDateFormat DATE_CSVFORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    // --- User, password and account are given per export, see AccountExport
+    private static String REST_API_SERVER = "https://www.blueworkslive.com";
+
+    // --- Date formats (SimpleDateFormat is not thread-safe, so every worker thread gets its own instance)
+    // --- API time stamps are converted to the csv format by TimestampConverter
+    private static ThreadLocal<SimpleDateFormat> DATE_INPUTFORMAT = newDateFormat("yyyy-MM-dd");
     //private static SimpleDateFormat DATE_PRINTFORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static SimpleDateFormat DATE_ISO8601 =new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
 
     // --- Configuration
     private static String PATH_OUTPUT = "./userstats";
@@ -55,19 +72,58 @@ public class BwlUserStats {
     private static String FILE_COMMENTS = "comments.txt";
     private static String FILE_UPDATES = "updates.txt";
     private static String FILE_VIEWS = "views.txt";
+    private static String FILE_CHECKPOINT = "checkpoint.properties";
+    private static String DIR_COLUMNS = "columns";
+    private static String DIR_SKETCHES = "sketches";
+    private static String FILE_DATABASE = "activity";
     //private static String TIME_START = "2015-01-01";
     //private static String TIME_END = "2015-07-31";
     private static Date today = Calendar.getInstance().getTime();
-    private static String TIME_END = DATE_INPUTFORMAT.format(today);
-    private static String TIME_START = DATE_INPUTFORMAT.format(addDays(today, -99)); //last 100 days
+    private static String TIME_END = DATE_INPUTFORMAT.get().format(today);
+    private static String TIME_START = DATE_INPUTFORMAT.get().format(addDays(today, -99)); //last 100 days
     
     private static boolean DATA_LOGIN = true;
     private static boolean DATA_COMMENT = true;
     private static boolean DATA_UPDATE = true;
     private static boolean DATA_VIEW = true;
+    private static boolean JSON_STREAMING = false;
+    private static boolean INCREMENTAL = false;
+    private static boolean AGGREGATE = false;
+    private static boolean STITCH_SESSIONS = false;
+    private static boolean COLUMNS = false;
+    private static boolean SKETCHES = false;
+    private static String PARTITIONS = null;
+    private static String DATABASE = null;
+    private static int PARALLEL_REQUESTS = 4;
+    private static ResponseCache RESPONSE_CACHE = null;
+    private static int CACHE_TTL_MINUTES = 60;
+    private static boolean OFFLINE = false;
+    private static int WINDOW_DAYS = 21;
+    private static boolean WINDOW_ADAPTIVE = false;
+    private static int WINDOW_MIN_DAYS = 1;
+    private static int WINDOW_MAX_DAYS = 90;
+    private static int WINDOW_TARGET_MB = 20;
+    private static int ACCOUNT_PARALLEL_REQUESTS = 0;
+    private static int API_RETRIES = 5;
+    private static int API_RATE = 0;
+    private static int PROGRESS_SECONDS = 0;
+    private static ExportMetrics METRICS = null;
+    private static int POLL_MINUTES = 0;
+    
+    // --- Polling stops when the JVM shuts down, the shutdown waits until the outputs are closed
+    private static final Object POLL_LOCK = new Object();
+    private static final CountDownLatch EXPORT_CLOSED = new CountDownLatch(1);
+    private static final long SHUTDOWN_MILLIS = 120000;
+    private static boolean STOPPING = false;
     
     // --- Usage
     private static String USAGE = "Usage: BwlUserStats <user> <password> <account> [optional_arguments]\n"
+    		+ "       BwlUserStats query <path> [query_arguments], see BwlUserStats query -h\n"
+    		+ "       BwlUserStats distinct <path> [query_arguments], distinct users of the -hll sketches, see BwlUserStats distinct -h\n"
+    		+ "       BwlUserStats mock [mock_arguments], a local mock of the API, see BwlUserStats mock -h\n"
+    		+ "       BwlUserStats loadtest [mock_arguments] [optional_arguments], an export against the mock\n"
+    		+ "       BwlUserStats batch <file> [optional_arguments], export all accounts of a file with lines\n"
+    		+ "                   <account>,<user>,<password> into a subdirectory per account\n"
     		+ "Optional arguments:\n"
     		+ "  -h          This help message\n"
     		+ "  -d <path>   Directory to store csv files, default="+PATH_OUTPUT+"\n"
@@ -77,16 +133,63 @@ public class BwlUserStats {
     		+ "  -sc         Skip comment data\n"
     		+ "  -su         Skip update data\n"
     		+ "  -sv         Skip view data\n"
+    		+ "  -i          Incremental, continue after the last completed day and append to the csv files\n"
+    		+ "  -a          Write summaries per day, user and space of the records, with -i including the previous runs\n"
+    		+ "  -st         Merge logins into sessions across windows and runs, with the concurrent users per hour\n"
+    		+ "  -b          Also store the records in binary column files in <path>/"+DIR_COLUMNS+" for BwlUserStats query\n"
+    		+ "  -hll        Also keep sketches of the distinct users per day and space and per day and type in\n"
+    		+ "              <path>/"+DIR_SKETCHES+" for BwlUserStats distinct, merged with those of earlier runs\n"
+    		+ "  -part <p>   Also store the records in gzipped csv files per \"day\" or \"month\", e.g. <path>/views/2016-05.csv.gz,\n"
+    		+ "              listed in <path>/"+PartitionedSink.FILE_MANIFEST+"\n"
+    		+ "  -db <db>    Also store the records in a table per activity type of the database \"h2\" (<path>/"+FILE_DATABASE+".mv.db),\n"
+    		+ "              \"sqlite\" (<path>/"+FILE_DATABASE+".db) or a JDBC URL, the driver jar has to be on the classpath,\n"
+    		+ "              for sqlite-jdbc together with slf4j-api. sqlite keeps up with the csv output given a spare core, h2 only\n"
+    		+ "              inserts about 50000 records/s and makes large exports slower\n"
+    		+ "  -js         Stream API responses record by record instead of loading them as a whole\n"
+    		+ "  -p <n>      Number of parallel API requests, default="+PARALLEL_REQUESTS+"\n"
+    		+ "  -pa <n>     Number of parallel API requests per account in batch mode, default=-p\n"
+    		+ "  -w <days>   Days per API request or \"auto\" to adapt them to the response size, default="+WINDOW_DAYS+"\n"
+    		+ "  -wmin <n>   Smallest window for -w auto in days, also the first one, default="+WINDOW_MIN_DAYS+"\n"
+    		+ "  -wmax <n>   Largest window for -w auto in days, default="+WINDOW_MAX_DAYS+"\n"
+    		+ "  -wsize <n>  Response size in MB that -w auto aims for, default="+WINDOW_TARGET_MB+"\n"
+    		+ "  -c <path>   Directory to cache API responses, responses of past days are kept forever\n"
+    		+ "  -ct <min>   Minutes to keep cached responses that include today, default="+CACHE_TTL_MINUTES+"\n"
+    		+ "  -o          Offline, use cached responses only (requires -c)\n"
+    		+ "  -retry <n>  Retries of an API request that failed with 429, 5xx or a connection error, default="+API_RETRIES+"\n"
+    		+ "  -rate <n>   Largest number of API requests per minute, default=unlimited\n"
+    		+ "  -server <url> Blueworks Live server, default="+REST_API_SERVER+"\n"
+    		+ "  -progress <s> Print a progress line with throughput and ETA every <s> seconds\n"
+    		+ "  -poll <min> Keep running and request the days after the checkpoint every <min> minutes,\n"
+    		+ "              appending new records only, until stopped with Ctrl-C (implies -i)\n"
     		;
 
     public static void main(String[] args) {
     	int i = 3;
     	Date start = null, end = null;
-    	String arg;
-    	if (args.length < i) printErrorAndExit("missing command line arguments, 3 arguments required");
-    	REST_API_USERNAME = args[0];
-    	REST_API_PASSWORD = args[1];
-    	REST_API_ACCOUNT_NAME = args[2];
+    	String arg, cachePath = null, batchFile = null;
+    	boolean failed = false;
+    	if (args.length > 0 && args[0].equals("query")) {
+    		ColumnQuery.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	if (args.length > 0 && args[0].equals("distinct")) {
+    		SketchQuery.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	if (args.length > 0 && args[0].equals("mock")) {
+    		MockServer.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	if (args.length > 0 && args[0].equals("loadtest")) {
+    		LoadTest.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	if (args.length > 0 && args[0].equals("batch")) {
+    		if (args.length < 2) printErrorAndExit("missing file of accounts");
+    		batchFile = args[1];
+    		i = 2;
+    	}
+    	else if (args.length < i) printErrorAndExit("missing command line arguments, 3 arguments required");
         
     	while (i < args.length && args[i].startsWith("-")) {
             arg = args[i++];
@@ -95,6 +198,12 @@ public class BwlUserStats {
     		else if (arg.equals("-sc")) { DATA_COMMENT = false; }
     		else if (arg.equals("-su")) { DATA_UPDATE = false; }
     		else if (arg.equals("-sv")) { DATA_VIEW = false; }
+    		else if (arg.equals("-js")) { JSON_STREAMING = true; }
+    		else if (arg.equals("-i")) { INCREMENTAL = true; }
+    		else if (arg.equals("-a")) { AGGREGATE = true; }
+    		else if (arg.equals("-st")) { STITCH_SESSIONS = true; }
+    		else if (arg.equals("-b")) { COLUMNS = true; }
+    		else if (arg.equals("-hll")) { SKETCHES = true; }
     		else if (arg.equals("-d")) {
                 if (i < args.length) PATH_OUTPUT = args[i++];
                 else printErrorAndExit("option -d requires a path"); 
@@ -106,134 +215,375 @@ public class BwlUserStats {
     		else if (arg.equals("-e")) {
                 if (i < args.length) TIME_END = args[i++];
                 else printErrorAndExit("option -e requires a date-time"); 
+            }
+    		else if (arg.equals("-o")) { OFFLINE = true; }
+    		else if (arg.equals("-c")) {
+                if (i < args.length) cachePath = args[i++];
+                else printErrorAndExit("option -c requires a path"); 
+            }
+    		else if (arg.equals("-ct")) {
+                if (i < args.length) CACHE_TTL_MINUTES = parsePositiveInt(args[i++], "-ct");
+                else printErrorAndExit("option -ct requires a number"); 
+            }
+    		else if (arg.equals("-w")) {
+                if (i >= args.length) printErrorAndExit("option -w requires a number or auto");
+                else if (args[i].equals("auto")) { WINDOW_ADAPTIVE = true; i++; }
+                else WINDOW_DAYS = parsePositiveInt(args[i++], "-w");
+            }
+    		else if (arg.equals("-wmin")) {
+                if (i < args.length) WINDOW_MIN_DAYS = parsePositiveInt(args[i++], "-wmin");
+                else printErrorAndExit("option -wmin requires a number"); 
+            }
+    		else if (arg.equals("-wmax")) {
+                if (i < args.length) WINDOW_MAX_DAYS = parsePositiveInt(args[i++], "-wmax");
+                else printErrorAndExit("option -wmax requires a number"); 
+            }
+    		else if (arg.equals("-wsize")) {
+                if (i < args.length) WINDOW_TARGET_MB = parsePositiveInt(args[i++], "-wsize");
+                else printErrorAndExit("option -wsize requires a number"); 
+            }
+    		else if (arg.equals("-p")) {
+                if (i < args.length) PARALLEL_REQUESTS = parsePositiveInt(args[i++], "-p");
+                else printErrorAndExit("option -p requires a number"); 
+            }
+    		else if (arg.equals("-pa")) {
+                if (i < args.length) ACCOUNT_PARALLEL_REQUESTS = parsePositiveInt(args[i++], "-pa");
+                else printErrorAndExit("option -pa requires a number"); 
+            }
+    		else if (arg.equals("-progress")) {
+                if (i < args.length) PROGRESS_SECONDS = parsePositiveInt(args[i++], "-progress");
+                else printErrorAndExit("option -progress requires a number"); 
+            }
+    		else if (arg.equals("-poll")) {
+                if (i < args.length) POLL_MINUTES = parsePositiveInt(args[i++], "-poll");
+                else printErrorAndExit("option -poll requires a number"); 
+            }
+    		else if (arg.equals("-part")) {
+                if (i < args.length) PARTITIONS = args[i++];
+                else printErrorAndExit("option -part requires day or month"); 
+                if (!PARTITIONS.equals("day") && !PARTITIONS.equals("month")) printErrorAndExit("option -part requires day or month");
+            }
+    		else if (arg.equals("-db")) {
+                if (i < args.length) DATABASE = args[i++];
+                else printErrorAndExit("option -db requires h2, sqlite or a JDBC URL"); 
+                if (!DATABASE.equals("h2") && !DATABASE.equals("sqlite") && !DATABASE.startsWith("jdbc:")) printErrorAndExit("option -db requires h2, sqlite or a JDBC URL");
+            }
+    		else if (arg.equals("-retry")) {
+                if (i < args.length) API_RETRIES = parseNonNegativeInt(args[i++], "-retry");
+                else printErrorAndExit("option -retry requires a number"); 
+            }
+    		else if (arg.equals("-server")) {
+                if (i < args.length) REST_API_SERVER = args[i++].replaceAll("/+$", "");
+                else printErrorAndExit("option -server requires a URL"); 
+            }
+    		else if (arg.equals("-rate")) {
+                if (i < args.length) API_RATE = parsePositiveInt(args[i++], "-rate");
+                else printErrorAndExit("option -rate requires a number"); 
             }
     		else  {
     			printErrorAndExit("unknown command line option "+arg);
             }
     	}
     	
+    	if (WINDOW_MIN_DAYS > WINDOW_MAX_DAYS) printErrorAndExit("option -wmin must not be larger than -wmax");
+    	// --- the accounts of a batch would share the tables
+    	if (batchFile != null && DATABASE != null && DATABASE.startsWith("jdbc:")) printErrorAndExit("option -db requires h2 or sqlite in batch mode");
+    	if (POLL_MINUTES > 0) {
+    		if (OFFLINE) printErrorAndExit("option -poll cannot be used with -o");
+    		INCREMENTAL = true;
+    		// --- every poll has to see the latest records of the open days
+    		CACHE_TTL_MINUTES = 0;
+    	}
+    	if (cachePath != null) RESPONSE_CACHE = new ResponseCache(new File(cachePath), CACHE_TTL_MINUTES * 60000L);
+    	else if (OFFLINE) printErrorAndExit("option -o requires a cache directory, use -c");
+    	// --- keep a connection alive for every parallel request
+    	if (PARALLEL_REQUESTS > Integer.getInteger("http.maxConnections", 5)) System.setProperty("http.maxConnections", Integer.toString(PARALLEL_REQUESTS));
+    	if (ACCOUNT_PARALLEL_REQUESTS == 0) ACCOUNT_PARALLEL_REQUESTS = PARALLEL_REQUESTS;
+    	
     	try {
-			start = DATE_INPUTFORMAT.parse(TIME_START);
-			end = DATE_INPUTFORMAT.parse(TIME_END);
+			start = DATE_INPUTFORMAT.get().parse(TIME_START);
+			end = DATE_INPUTFORMAT.get().parse(TIME_END);
 		} catch (ParseException e1) {
 			e1.printStackTrace();
 			printErrorAndExit("could not parse given start or end date");
 		}
     	
-    	System.out.println("User statistics for Blueworks Live account "+REST_API_ACCOUNT_NAME+" requested by user "+REST_API_USERNAME);
+    	// --- all accounts share the worker pool, the rate limit and the kept-alive connections
+    	RateLimiter limiter = new RateLimiter(API_RATE);
+    	List<AccountExport> accounts = new ArrayList<AccountExport>();
+    	if (batchFile == null) {
+    		accounts.add(new AccountExport(args[2], args[0], args[1], new File(PATH_OUTPUT), limiter, ""));
+    		System.out.println("User statistics for Blueworks Live account "+args[2]+" requested by user "+args[0]);
+    	}
+    	else {
+    		try {
+    			accounts = readAccounts(batchFile, limiter);
+    		} catch (IOException e) {
+    			printErrorAndExit("could not read file of accounts: "+e.getMessage());
+    		}
+    		if (accounts.isEmpty()) printErrorAndExit("no accounts in "+batchFile);
+    		System.out.println("User statistics for "+accounts.size()+" Blueworks Live accounts of "+batchFile);
+    	}
     	System.out.println("Will store files in directory: " + PATH_OUTPUT);
-    	System.out.println("Period: " + DATE_INPUTFORMAT.format(start) + " ... " + DATE_INPUTFORMAT.format(end));
+    	System.out.println("Period: " + DATE_INPUTFORMAT.get().format(start) + " ... " + DATE_INPUTFORMAT.get().format(end));
     	System.out.println("------------------------------------------------------------------------------");
     	
 
+        METRICS = new ExportMetrics();
+        ExecutorService pool = Executors.newFixedThreadPool(PARALLEL_REQUESTS);
         try {
-        	int totalCountLogins = 0;
-        	int totalCountComments = 0;
-        	int totalCountUpdates = 0;
-        	int totalCountViews = 0;
-        	Date tmpstart = start;
-        	PrintWriter pwLogins=null, pwComments=null, pwUpdates=null, pwViews=null;
-        	
-        	FileUtils.forceMkdir(new File(PATH_OUTPUT));
-        	if (DATA_LOGIN) {
-        		pwLogins = new PrintWriter(new File(PATH_OUTPUT,FILE_LOGINS));
-        		pwLogins.println ("Time,EndTime,Type,User");
-        	}
-        	if (DATA_COMMENT) {
-        		pwComments = new PrintWriter(new File(PATH_OUTPUT,FILE_COMMENTS));
-        		pwComments.println ("Time,Space,Name,Type,Activity,User,IsReply,Category");
-        	}
-        	if (DATA_UPDATE) {
-        		pwUpdates = new PrintWriter(new File(PATH_OUTPUT,FILE_UPDATES));
-        		pwUpdates.println ("Time,Space,Name,Type,User");
-        	}
-        	if (DATA_VIEW) {
-        		pwViews = new PrintWriter(new File(PATH_OUTPUT,FILE_VIEWS));
-        		pwViews.println ("Time,Space,Name,Type,User");
+        	for (AccountExport account : accounts) {
+        		try {
+        			account.open(start, end);
+        		} catch (Exception e) {
+        			if (batchFile == null) throw e;
+        			System.err.println(account.prefix + "ERROR: " + e);
+        			account.cancel();
+        		}
         	}
+        	runRequests(accounts, pool, batchFile != null || POLL_MINUTES > 0);
+        	if (POLL_MINUTES > 0) poll(accounts, pool);
         	
-        	while (tmpstart.compareTo(end)<=0) {
-        		InputStream restApiStream;
-        		Date tmpend = addDays(tmpstart, 20);
-        		if (tmpend.compareTo(end)>0) {tmpend = end;}
-        		System.out.println("Retrieving info for " + DATE_INPUTFORMAT.format(tmpstart) + " ... " + DATE_INPUTFORMAT.format(tmpend));
-
-        		// --- Login Records ---
-            	if (DATA_LOGIN) {
-            		int count = 0;
-            		restApiStream = getActivityData("LOGINS",tmpstart,tmpend);
-            		try {
-            			count = processLoginData(restApiStream,pwLogins);
-            		} finally {
-            			restApiStream.close();
-            			System.out.println(" => " + count + " login records found");
-            		}
-            		totalCountLogins += count;
-            	}
-
-        		// --- Comment Records ---
-            	if (DATA_COMMENT) {
-            		int count = 0;
-            		restApiStream = getActivityData("COMMENTS",tmpstart,tmpend);
-            		try {
-            			count = processCommentData(restApiStream,pwComments);
-            		} finally {
-            			restApiStream.close();
-                    	System.out.println(" => " + count + " comment records found");
-            		}
-            		totalCountComments += count;
-            	}
-
-        		// --- Comment Records ---
-            	if (DATA_UPDATE) {
-            		int count = 0;
-            		restApiStream = getActivityData("ITEMS_CHANGED",tmpstart,tmpend);
-            		try {
-            			count = processUpdateData(restApiStream,pwUpdates);
-            		} finally {
-            			restApiStream.close();
-                    	System.out.println(" => " + count + " update records found");
-            		}
-            		totalCountUpdates += count;
-            	}
-
-        		// --- Comment Records ---
-            	if (DATA_VIEW) {
-            		int count = 0;
-            		restApiStream = getActivityData("ITEMS_VIEWED",tmpstart,tmpend);
-            		try {
-            			count = processViewData(restApiStream,pwViews);
-            		} finally {
-            			restApiStream.close();
-                    	System.out.println(" => " + count + " view records found");
-            		}
-            		totalCountViews += count;
-            	}
-
-            	tmpstart = addDays(tmpend, 1);
-        	}
-			System.out.println("------------------------------------------------------------------------------");
-        	if (DATA_LOGIN) {
-        		pwLogins.flush(); pwLogins.close ();
-    			System.out.println("Found "+totalCountLogins+" login records and stored in "+FILE_LOGINS);
-        	}
-        	if (DATA_COMMENT) {
-        		pwComments.flush(); pwComments.close ();
-    			System.out.println("Found "+totalCountComments+" comment records and stored in "+FILE_COMMENTS);
-        	}
-        	if (DATA_UPDATE) {
-        		pwUpdates.flush(); pwUpdates.close ();
-    			System.out.println("Found "+totalCountUpdates+" update records and stored in "+FILE_UPDATES);
-        	}
-        	if (DATA_VIEW) {
-        		pwViews.flush(); pwViews.close ();
-    			System.out.println("Found "+totalCountViews+" view records and stored in "+FILE_VIEWS);
+        	for (AccountExport account : accounts) {
+        		if (account.failed) {
+        			failed = true;
+        			System.err.println(account.prefix + "Export stopped, completed days are kept in "+FILE_CHECKPOINT+", use -i to continue");
+        		}
+        		else account.close();
         	}
-			System.out.println("DONE");
+        	writeMetrics();
+        	if (!failed) System.out.println("DONE");
 
         } catch (Exception e) {
             e.printStackTrace();
+            writeMetrics();
+            System.err.println("Export stopped, completed days are kept in "+FILE_CHECKPOINT+", use -i to continue");
+            failed = true;
+        } finally {
+        	pool.shutdownNow();
+        	EXPORT_CLOSED.countDown();
         }
+        if (failed) {
+        	System.exit(1);
+        }
+    }
+    
+    /**
+     * Run the requests of all accounts until none are left.
+     * 
+     * @param keepGoing true to stop only the account of a failed request, false to throw its error.
+     *                  With -poll only the requests of the account are dropped until the next poll.
+     */
+    private static void runRequests (List<AccountExport> accounts, ExecutorService pool, boolean keepGoing) throws Exception {
+    	BlockingQueue<ActivityFetch> finished = new LinkedBlockingQueue<ActivityFetch>();
+    	int inFlight = 0, turn = 0;
+    
+    	// --- One request per window and activity type, at most PARALLEL_REQUESTS of them in flight
+    	// --- and ACCOUNT_PARALLEL_REQUESTS per account. The account with the fewest requests in flight
+    	// --- is served next, taking turns on a tie. Requests of an account are completed in the order
+    	// --- they were started, so its csv files stay in chronological order.
+    	while (true) {
+    		while (inFlight < PARALLEL_REQUESTS) {
+    			AccountExport next = null;
+    			for (int k = 0; k < accounts.size(); k++) {
+    				AccountExport account = accounts.get((turn + k) % accounts.size());
+    				if (!account.hasNext() || account.inFlight.size() >= ACCOUNT_PARALLEL_REQUESTS) continue;
+    				if (next == null || account.inFlight.size() < next.inFlight.size()) next = account;
+    			}
+    			if (next == null) break;
+    			turn = (accounts.indexOf(next) + 1) % accounts.size();
+    			next.startNext(pool, finished);
+    			inFlight++;
+    		}
+    		if (inFlight == 0) break;
+    		ActivityFetch fetch = PROGRESS_SECONDS > 0 ? finished.poll(PROGRESS_SECONDS, TimeUnit.SECONDS) : finished.take();
+    		if (PROGRESS_SECONDS > 0) METRICS.printProgress(PROGRESS_SECONDS);
+    		if (fetch == null) continue;
+    		AccountExport account = fetch.account;
+    		int before = account.inFlight.size();
+    		try {
+    			account.completeFinished();
+    		} catch (Exception e) {
+    			if (!keepGoing) throw e;
+    			System.err.println(account.prefix + "ERROR: " + e);
+    			if (POLL_MINUTES > 0) account.abort();
+    			else account.cancel();
+    		}
+    		// --- requests completed before the error count as well
+    		inFlight -= before - account.inFlight.size();
+    	}
+    }
+    
+    /**
+     * Poll the days after the checkpoint of every account until the JVM shuts down, e.g. on
+     * Ctrl-C or SIGTERM. A poll that is running by then is completed, and the shutdown waits
+     * until the outputs are closed. Between polls the workers are idle and only the counts of
+     * the DuplicateFilter are kept. A poll that fails is dropped and tried again by the next one.
+     */
+    private static void poll (List<AccountExport> accounts, ExecutorService pool) throws Exception {
+    	final Thread main = Thread.currentThread();
+    	Runtime.getRuntime().addShutdownHook(new Thread("BwlUserStats shutdown") {
+    		public void run () {
+    			synchronized (POLL_LOCK) {
+    				STOPPING = true;
+    				POLL_LOCK.notifyAll();
+    			}
+    			try {
+    				if (main.isAlive()) EXPORT_CLOSED.await(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+    			} catch (InterruptedException e) {
+    				// exit anyway
+    			}
+    		}
+    	});
+    	System.out.println("------------------------------------------------------------------------------");
+    	System.out.println("Polling every " + POLL_MINUTES + " minutes, stop with Ctrl-C");
+    	long interval = POLL_MINUTES * 60000L;
+    	long next = System.currentTimeMillis() + interval;
+    	while (true) {
+    		synchronized (POLL_LOCK) {
+    			long wait;
+    			while (!STOPPING && (wait = next - System.currentTimeMillis()) > 0) POLL_LOCK.wait(wait);
+    			if (STOPPING) return;
+    		}
+    		// --- a poll that took longer than the interval skips the polls it missed
+    		while (next <= System.currentTimeMillis()) next += interval;
+    		Date today = DATE_INPUTFORMAT.get().parse(DATE_INPUTFORMAT.get().format(new Date()));
+    		METRICS.startPoll();
+    		for (AccountExport account : accounts) {
+    			if (!account.failed) account.plan(today);
+    		}
+    		runRequests(accounts, pool, true);
+    		for (AccountExport account : accounts) {
+    			if (!account.failed) account.finishPoll();
+    		}
+    		try {
+    			METRICS.write(new File(PATH_OUTPUT));
+    		} catch (IOException e) {
+    			System.err.println("ERROR: could not write metrics: " + e);
+    		}
+    	}
+    }
+    
+    /**
+     * Write the timings and counters of the requests so far into the output directory.
+     */
+    private static void writeMetrics () {
+    	try {
+    		METRICS.write(new File(PATH_OUTPUT));
+    		System.out.println("Metrics stored in "+ExportMetrics.FILE_JSON+" and "+ExportMetrics.FILE_PROMETHEUS);
+    	} catch (IOException e) {
+    		System.err.println("ERROR: could not write metrics: "+e.getMessage());
+    	}
+    }
+    
+    /**
+     * Read the accounts of a batch export, one per line as account,user,password. The password
+     * is the rest of the line and may contain commas. Empty lines and lines starting with # are skipped.
+     * 
+     * @param file the file of accounts
+     * @param limiter the rate limiter shared by all accounts
+     * @return an export per account, writing to a subdirectory of PATH_OUTPUT named after the account
+     */
+    private static List<AccountExport> readAccounts (String file, RateLimiter limiter) throws IOException {
+    	List<AccountExport> accounts = new ArrayList<AccountExport>();
+    	for (String line : FileUtils.readLines(new File(file), "UTF-8")) {
+    		if (line.trim().length() == 0 || line.trim().startsWith("#")) continue;
+    		String[] fields = line.split(",", 3);
+    		if (fields.length < 3 || fields[0].trim().length() == 0) throw new IOException("expected account,user,password but found: "+line);
+    		String name = fields[0].trim();
+    		accounts.add(new AccountExport(name, fields[1].trim(), fields[2], new File(PATH_OUTPUT, name), limiter, "[" + name + "] "));
+    	}
+    	return accounts;
+    }
+    
+    /**
+     * @param type the activity type
+     * @return true if the records of this type are requested
+     */
+    private static boolean isEnabled (ActivityType type) {
+    	switch (type) {
+    	case LOGINS: return DATA_LOGIN;
+    	case COMMENTS: return DATA_COMMENT;
+    	case ITEMS_CHANGED: return DATA_UPDATE;
+    	default: return DATA_VIEW;
+    	}
+    }
+    
+    /**
+     * @param type the activity type
+     * @return the name of the csv file for records of this type
+     */
+    private static String getFileName (ActivityType type) {
+    	switch (type) {
+    	case LOGINS: return FILE_LOGINS;
+    	case COMMENTS: return FILE_COMMENTS;
+    	case ITEMS_CHANGED: return FILE_UPDATES;
+    	default: return FILE_VIEWS;
+    	}
+    }
+    
+    /**
+     * @param type the activity type
+     * @return the name of the directory with the partitions of this type, the csv file name without extension
+     */
+    private static String getPartitionName (ActivityType type) {
+    	String name = getFileName(type);
+    	return name.substring(0, name.lastIndexOf('.'));
+    }
+    
+    /**
+     * @param dir the output directory of an account
+     * @return the JDBC URL of the -db option, h2 and sqlite stand for a database file in the directory
+     */
+    private static String getDatabaseUrl (File dir) {
+    	if (DATABASE.equals("h2")) return "jdbc:h2:" + new File(dir, FILE_DATABASE).getAbsolutePath();
+    	if (DATABASE.equals("sqlite")) return "jdbc:sqlite:" + new File(dir, FILE_DATABASE + ".db").getAbsolutePath();
+    	return DATABASE;
+    }
+    
+    /**
+     * Look for a cached response that starts at the given day, reusing its window avoids
+     * another API call, and in offline mode it is the only window that can be served.
+     * 
+     * @param account the account
+     * @param type the activity type
+     * @param start the first day of the next window
+     * @return the last day of the cached window or null
+     */
+    private static Date getCachedEnd (AccountExport account, ActivityType type, Date start) throws ParseException {
+    	if (RESPONSE_CACHE == null) return null;
+    	String cachedEnd = RESPONSE_CACHE.findEnd(account.name, type.name(), DATE_INPUTFORMAT.get().format(start), OFFLINE);
+    	return cachedEnd == null ? null : DATE_INPUTFORMAT.get().parse(cachedEnd);
+    }
+    
+    /**
+     * A window is closed when its last day is over in UTC, the time zone used for the API calls.
+     * Records of a closed window do not change anymore.
+     * 
+     * @param end the last day of the window
+     */
+    private static boolean isClosed (Date end) {
+    	SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd");
+    	utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+    	return DATE_INPUTFORMAT.get().format(end).compareTo(utc.format(new Date())) < 0;
+    }
+    
+    /**
+     * @return the last day that is over in UTC, see isClosed
+     */
+    private static Date getLastClosedDay () throws ParseException {
+    	SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd");
+    	utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+    	return addDays(DATE_INPUTFORMAT.get().parse(utc.format(new Date())), -1);
+    }
+    
+    /**
+     * @param start the first day
+     * @param end the last day
+     * @return the number of days from start to end, both included
+     */
+    private static int getDays (Date start, Date end) {
+    	return (int) Math.round((end.getTime() - start.getTime()) / 86400000.0) + 1;
     }
     
     public static Date addDays(Date date, int days)
@@ -257,65 +607,146 @@ public class BwlUserStats {
         System.exit(1);
     }
     
+    /**
+     * Parse the numeric value of a command line option, must be 1 or larger.
+     * 
+     * @param value the value as given on the command line
+     * @param option the option name used in the error message
+     */
+    private static int parsePositiveInt (String value, String option) {
+    	return parseInt(value, option, 1);
+    }
+    
+    /**
+     * Parse the numeric value of a command line option, must be 0 or larger.
+     * 
+     * @param value the value as given on the command line
+     * @param option the option name used in the error message
+     */
+    private static int parseNonNegativeInt (String value, String option) {
+    	return parseInt(value, option, 0);
+    }
+    
+    private static int parseInt (String value, String option, int min) {
+    	try {
+    		int n = Integer.parseInt(value);
+    		if (n >= min) return n;
+    	} catch (NumberFormatException e) {
+    		// reported below
+    	}
+    	printErrorAndExit("option "+option+" requires a number larger than "+(min - 1));
+    	return 0;
+    }
+    
+    private static ThreadLocal<SimpleDateFormat> newDateFormat (final String pattern) {
+    	return ThreadLocal.withInitial(() -> new SimpleDateFormat(pattern));
+    }
+    
     /**
      * Generic call of the API resource "activity".
      * 
+     * @param account the account to request the data of
      * @param type such as LOGINS, COMMENTS, ...
      * @param start start date as yyyy-MM-dd 
      * @param end end date as yyyy-MM-dd
      */
-    private static InputStream getActivityData (String type, Date start, Date end) throws IOException {
+    private static InputStream getActivityData (AccountExport account, String type, Date start, Date end) throws IOException {
+		String startDate = DATE_INPUTFORMAT.get().format(start);
+		String endDate = DATE_INPUTFORMAT.get().format(end);
+		boolean closed = isClosed(end);
+
+		if (RESPONSE_CACHE != null) {
+			InputStream cached = RESPONSE_CACHE.get(account.name, type, startDate, endDate, closed, OFFLINE);
+			if (cached != null) return cached;
+		}
+		if (OFFLINE) throw new IOException("No cached " + type + " response for " + startDate + " ... " + endDate);
 
 		StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/activity");
-		appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+		appListUrlBuilder.append("?account=").append(URLEncoder.encode(account.name, "UTF-8"));
 		appListUrlBuilder.append("&type=").append(type);
-		appListUrlBuilder.append("&startDate=").append(DATE_INPUTFORMAT.format(start)+"T00:00:00.000-00:00");
-		appListUrlBuilder.append("&endDate=").append(DATE_INPUTFORMAT.format(end)+"T23:59:59.999-00:00");
+		appListUrlBuilder.append("&startDate=").append(startDate+"T00:00:00.000-00:00");
+		appListUrlBuilder.append("&endDate=").append(endDate+"T23:59:59.999-00:00");
 		
-		HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
-		if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-			System.err.println("Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
-			System.exit(1);
-		}
-
 		// Process the JSON result.
-		InputStream restApiStream = restApiURLConnection.getInputStream();
+		InputStream restApiStream = account.client.get(appListUrlBuilder.toString());
+		if (RESPONSE_CACHE != null) {
+			restApiStream = RESPONSE_CACHE.store(account.name, type, startDate, endDate, closed, restApiStream);
+		}
     	
     	return restApiStream;
     }
 
     /**
-     * Process the login information as retrieved from an API call via getActivityData ().
+     * Process the records of the given activity type as retrieved from an API call via getActivityData ().
      * 
+     * @param type the activity type that was requested
      * @param restApiStream InputStream as received from getActivityData ()
-     * @param pw a PrintWriter to send the output to 
+     * @param out the sink to send the records to 
      */
-    private static int processLoginData (InputStream restApiStream, PrintWriter pw) throws JSONException, ParseException  {
-    	int count = 0;
+    private static int processData (ActivityType type, InputStream restApiStream, RecordSink out) throws JSONException, ParseException, IOException  {
+    	return processData(type, restApiStream, out, null);
+    }
+
+    /**
+     * Process the records of the given activity type and time the conversion of the time stamps.
+     * 
+     * @param type the activity type that was requested
+     * @param restApiStream InputStream as received from getActivityData ()
+     * @param out the sink to send the records to 
+     * @param metrics the metrics of the request, may be null
+     */
+    private static int processData (ActivityType type, InputStream restApiStream, RecordSink out, ExportMetrics.Request metrics) throws JSONException, ParseException, IOException  {
+    	switch (type) {
+    	case LOGINS: return processLoginData(restApiStream, out, metrics);
+    	case COMMENTS: return processCommentData(restApiStream, out, metrics);
+    	case ITEMS_CHANGED: return processUpdateData(restApiStream, out, metrics);
+    	case ITEMS_VIEWED: return processViewData(restApiStream, out, metrics);
+    	default: throw new IllegalArgumentException("unknown activity type "+type);
+    	}
+    }
+
+    /**
+     * Open the records of an API response, either streamed record by record or loaded as a whole.
+     * 
+     * @param restApiStream InputStream as received from getActivityData ()
+     * @param type the activity type, defines the fields to keep when streaming
+     */
+    private static RecordCursor openRecords (InputStream restApiStream, ActivityType type) throws JSONException {
+    	if (JSON_STREAMING) return new JsonRecordReader(restApiStream, type.fields);
 		JSONObject appListResult = new JSONObject(restApiStream);
 		//System.out.println(appListResult.toString(2));
-    
-		JSONArray records = (JSONArray) appListResult.get("records");
-		for (Object obj : records) {
+		return new DomRecordCursor((JSONArray) appListResult.get("records"));
+    }
+
+    /**
+     * Process the login information as retrieved from an API call via getActivityData ().
+     * 
+     * @param restApiStream InputStream as received from getActivityData ()
+     * @param out the sink to send the records to 
+     * @param metrics the metrics of the request, may be null
+     */
+    private static int processLoginData (InputStream restApiStream, RecordSink out, ExportMetrics.Request metrics) throws JSONException, ParseException, IOException  {
+    	int count = 0;
+		RecordCursor record = openRecords(restApiStream, ActivityType.LOGINS);
+		while (record.next()) {
 			count++;
-			JSONObject record = (JSONObject)obj;
 			//String message = record.getString("message");
 			String time = record.getString("time");
 			//String timeStamp = record.getString("timeStamp");
 			String endTime = "";
-			if (record.containsKey("endTime")) endTime = record.getString("endTime");  // might not exist if user is still logged in
+			if (record.has("endTime")) endTime = record.getString("endTime");  // might not exist if user is still logged in
 			String type = record.getString("type"); // SSO, SESSION_TIMEOUT, CLIENT_TIMEOUT, USER, USER_LOGIN
 			String user = record.getString("user");
     	
-			Date dateTime = DATE_ISO8601.parse(time);
+			String dateTime = toCsv(time, metrics);
 			if (endTime == "") {
 				//System.out.println("RECORD("+count+"): "+DATE_PRINTFORMAT.format(dateTime)+" "+type+" "+user);
-				pw.println (DATE_CSVFORMAT.format(dateTime)+",,"+type+","+user);
+				out.write (ActivityType.LOGINS, new String[] {dateTime, "", type, user});
 			}
 			else {
-				Date dateEndTime = DATE_ISO8601.parse(endTime);
+				String dateEndTime = toCsv(endTime, metrics);
 				//System.out.println("RECORD("+count+"): "+DATE_PRINTFORMAT.format(dateTime)+" ... "+DATE_PRINTFORMAT.format(dateEndTime)+" "+type+" "+user);
-				pw.println (DATE_CSVFORMAT.format(dateTime)+","+DATE_CSVFORMAT.format(dateEndTime)+","+type+","+user);
+				out.write (ActivityType.LOGINS, new String[] {dateTime, dateEndTime, type, user});
 			}
 		}
 		return count;
@@ -324,17 +755,14 @@ public class BwlUserStats {
      * Process the comments information as retrieved from an API call via getActivityData ().
      * 
      * @param restApiStream InputStream as received from getActivityData ()
-     * @param pw a PrintWriter to send the output to 
+     * @param out the sink to send the records to 
+     * @param metrics the metrics of the request, may be null
      */
-    private static int processCommentData (InputStream restApiStream, PrintWriter pw) throws JSONException, ParseException  {
+    private static int processCommentData (InputStream restApiStream, RecordSink out, ExportMetrics.Request metrics) throws JSONException, ParseException, IOException  {
     	int count = 0;
-		JSONObject appListResult = new JSONObject(restApiStream);
-		//System.out.println(appListResult.toString(2));
-    
-		JSONArray records = (JSONArray) appListResult.get("records");
-		for (Object obj : records) {
+		RecordCursor record = openRecords(restApiStream, ActivityType.COMMENTS);
+		while (record.next()) {
 			count++;
-			JSONObject record = (JSONObject)obj;
 			//System.out.println(">  "+record.toString(2));
 			//String message = record.getString("message");
 			String timeStamp = record.getString("timeStamp");
@@ -358,10 +786,10 @@ public class BwlUserStats {
 			String isReply = record.has("isReply")?record.getString("isReply"):""; // true, false
 			isReply = record.has("isReply ")?record.getString("isReply "):isReply; // true, false
     	
-			Date dateTime = DATE_ISO8601.parse(timeStamp);
+			String dateTime = toCsv(timeStamp, metrics);
 
-			//System.out.println("RECORD("+count+"): "+DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+name+","+activityType+","+activityName+","+user+","+isReply);
-            pw.println (DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+name+","+activityType+","+activityName+","+user+","+isReply+","+type);
+			//System.out.println("RECORD("+count+"): "+dateTime+","+spaceName+","+name+","+activityType+","+activityName+","+user+","+isReply);
+            out.write (ActivityType.COMMENTS, new String[] {dateTime, spaceName, name, activityType, activityName, user, isReply, type});
 		}
 		return count;
     }
@@ -369,31 +797,28 @@ public class BwlUserStats {
      * Process the updates information as retrieved from an API call via getActivityData ().
      * 
      * @param restApiStream InputStream as received from getActivityData ()
-     * @param pw a PrintWriter to send the output to 
+     * @param out the sink to send the records to 
+     * @param metrics the metrics of the request, may be null
      */
-    private static int processUpdateData (InputStream restApiStream, PrintWriter pw) throws JSONException, ParseException  {
+    private static int processUpdateData (InputStream restApiStream, RecordSink out, ExportMetrics.Request metrics) throws JSONException, ParseException, IOException  {
     	int count = 0;
-		JSONObject appListResult = new JSONObject(restApiStream);
-		//System.out.println(appListResult.toString(2));
-    
-		JSONArray records = (JSONArray) appListResult.get("records");
-		for (Object obj : records) {
+		RecordCursor record = openRecords(restApiStream, ActivityType.ITEMS_CHANGED);
+		while (record.next()) {
 			count++;
-			JSONObject record = (JSONObject)obj;
 			//String message = record.getString("message");
 			String timeStamp = record.getString("timeStamp");
 			String spaceName = record.getString("spaceName");
 			String processName = "";
-			if (record.containsKey("processName")) processName = record.getString("processName");
+			if (record.has("processName")) processName = record.getString("processName");
 			//String spaceId = record.getString("spaceId");
 			String type = record.getString("type"); // PROCESS_CREATED, PROCESS_PROPERTY_CHANGED, PROCESS_ITEM_CHANGED, PROCESS_SNAPSHOT_TAKEN, SPACE_USER_CHANGED, ...
 			String user = record.getString("user");
 			// --- and many others depending on type ---
     	
-			Date dateTime = DATE_ISO8601.parse(timeStamp);
+			String dateTime = toCsv(timeStamp, metrics);
 
-			//System.out.println("RECORD("+count+"): "+DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+type+","+user);
-            pw.println (DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+processName+","+type+","+user);
+			//System.out.println("RECORD("+count+"): "+dateTime+","+spaceName+","+type+","+user);
+            out.write (ActivityType.ITEMS_CHANGED, new String[] {dateTime, spaceName, processName, type, user});
 		}
 		return count;
     }
@@ -401,65 +826,509 @@ public class BwlUserStats {
      * Process the view information as retrieved from an API call via getActivityData ().
      * 
      * @param restApiStream InputStream as received from getActivityData ()
-     * @param pw a PrintWriter to send the output to 
+     * @param out the sink to send the records to 
+     * @param metrics the metrics of the request, may be null
      */
-    private static int processViewData (InputStream restApiStream, PrintWriter pw) throws JSONException, ParseException  {
+    private static int processViewData (InputStream restApiStream, RecordSink out, ExportMetrics.Request metrics) throws JSONException, ParseException, IOException  {
     	int count = 0;
-		JSONObject appListResult = new JSONObject(restApiStream);
-		//System.out.println(appListResult.toString(2));
-    
-		JSONArray records = (JSONArray) appListResult.get("records");
-		for (Object obj : records) {
+		RecordCursor record = openRecords(restApiStream, ActivityType.ITEMS_VIEWED);
+		while (record.next()) {
 			count++;
-			JSONObject record = (JSONObject)obj;
 			//String message = record.getString("message");
 			//String time = record.getString("time");
 			String itemName = record.getString("itemName");
 			String timeStamp = record.getString("timeStamp");
 			String spaceName = record.getString("spaceName");
 			//String subType = record.getString("subType");
-			String itemType = record.getString("itemType"); // process, space, decision, policy
+			String itemType = record.has("itemType")?record.getString("itemType"):""; // process, space, decision, policy (missing for some items)
 			//String spaceId = record.getString("spaceId");
 			//String itemId = record.getString("itemId");
 			//String type = record.getString("type"); // ITEM_VIEWED
 			String user = record.getString("user");
 			//String licenseType = record.getString("licenseType"); // EDITOR, ...
     	
-			Date dateTime = DATE_ISO8601.parse(timeStamp);
+			String dateTime = toCsv(timeStamp, metrics);
 
-			//System.out.println("RECORD("+count+"): "+DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+itemName+","+itemType+","+user);
-            pw.println (DATE_CSVFORMAT.format(dateTime)+","+spaceName+","+itemName+","+itemType+","+user);
+			//System.out.println("RECORD("+count+"): "+dateTime+","+spaceName+","+itemName+","+itemType+","+user);
+            out.write (ActivityType.ITEMS_VIEWED, new String[] {dateTime, spaceName, itemName, itemType, user});
 		}
 		return count;
     }
     
     /**
-     * Set up the connection to a REST API including handling the Basic Authentication request headers that must be
-     * present on every API call.
+     * Convert an API time stamp to the csv format, timed if metrics are given.
      * 
-     * @param apiCall The URL string indicating the api call and parameters.
-     * @return the open connection
+     * @param timestamp the time stamp as sent by the API
+     * @param metrics the metrics of the request, may be null
      */
-    public static HttpURLConnection getRestApiConnection(String apiCall) throws IOException {
+    private static String toCsv (String timestamp, ExportMetrics.Request metrics) throws ParseException {
+    	if (metrics == null) return TimestampConverter.toCsv(timestamp);
+    	long started = System.nanoTime();
+    	String dateTime = TimestampConverter.toCsv(timestamp);
+    	metrics.formatNanos += System.nanoTime() - started;
+    	return dateTime;
+    }
+    
+    /**
+     * Iterates over the records of a completely loaded API response.
+     */
+    private static class DomRecordCursor implements RecordCursor {
+    	private final Iterator<?> records;
+    	private JSONObject record;
+
+    	DomRecordCursor (JSONArray records) {
+    		this.records = records.iterator();
+    	}
 
-        // Call the provided api on the Blueworks Live server
-        URL restApiUrl = new URL(apiCall);
-        HttpURLConnection restApiURLConnection = (HttpURLConnection) restApiUrl.openConnection();
+    	public boolean next () {
+    		if (!records.hasNext()) return false;
+    		record = (JSONObject) records.next();
+    		return true;
+    	}
 
-        // Add the HTTP Basic authentication header which should be present on every API call.
-        addAuthenticationHeader(restApiURLConnection);
+    	public boolean has (String key) {
+    		return record.has(key) && !record.isNull(key);
+    	}
 
-        return restApiURLConnection;
+    	public String getString (String key) throws JSONException {
+    		return record.getString(key);
+    	}
     }
 
     /**
-     * Add the HTTP Basic authentication header which should be present on every API call.
+     * The export of one account: its credentials, output directory, checkpoint and sinks, and the
+     * requests it has in flight. Several of them share the worker pool in batch mode.
+     */
+    private static class AccountExport {
+    	final String name;
+    	final ApiClient client;
+    	final File dir;
+    	final String prefix;
+    	final Deque<ActivityFetch> inFlight = new ArrayDeque<ActivityFetch>();
+    	final Map<ActivityType,Integer> totals = new EnumMap<ActivityType,Integer>(ActivityType.class);
+    	final Map<ActivityType,WindowPlanner> planners = new EnumMap<ActivityType,WindowPlanner>(ActivityType.class);
+    	final CsvSink csv = new CsvSink();
+    	final CompositeSink output = new CompositeSink();
+    	ActivityAggregator aggregator;
+    	ColumnStore columns;
+    	SessionStitcher sessions;
+    	PartitionedSink partitions;
+    	UserSketches sketches;
+    	JdbcSink database;
+    	DuplicateFilter filter;
+    	Checkpoint checkpoint;
+    	ActivityFetch previous;
+    	Date start;
+    	boolean failed;
+    	boolean polling;
+
+    	/**
+    	 * @param name the account name used in the API calls
+    	 * @param user the user of the API calls
+    	 * @param password the password of the user
+    	 * @param dir the output directory of this account
+    	 * @param limiter the rate limiter, shared by all accounts
+    	 * @param prefix put in front of the console output of this account, empty for a single account
+    	 */
+    	AccountExport (String name, String user, String password, File dir, RateLimiter limiter, String prefix) {
+    		this.name = name;
+    		this.client = new ApiClient(user, password, API_RETRIES, limiter);
+    		this.dir = dir;
+    		this.prefix = prefix;
+    	}
+
+    	/**
+    	 * Open the output files and plan the windows of all requested activity types. With -i an
+    	 * activity type continues after the day of its checkpoint.
+    	 */
+    	void open (Date start, Date end) throws Exception {
+        	this.start = start;
+        	Date lastClosed = getLastClosedDay();
+        	FileUtils.forceMkdir(dir);
+        	checkpoint = new Checkpoint(new File(dir,FILE_CHECKPOINT));
+        	if (COLUMNS) columns = new ColumnStore(new File(dir, DIR_COLUMNS));
+        	output.add(csv);
+        	if (AGGREGATE) {
+        		aggregator = new ActivityAggregator(dir);
+        		output.add(aggregator);
+        	}
+        	if (columns != null) output.add(columns);
+        	if (PARTITIONS != null) {
+        		partitions = new PartitionedSink(dir, PARTITIONS.equals("month"));
+        		output.add(partitions);
+        	}
+        	if (SKETCHES) {
+        		sketches = new UserSketches(new File(dir, DIR_SKETCHES));
+        		output.add(sketches);
+        	}
+        	if (DATABASE != null) {
+        		database = new JdbcSink(getDatabaseUrl(dir));
+        		output.add(database);
+        	}
+        	if (POLL_MINUTES > 0) filter = new DuplicateFilter(output);
+        	for (ActivityType type : ActivityType.values()) {
+        		if (!isEnabled(type)) continue;
+        		File file = new File(dir,getFileName(type));
+        		String done = checkpoint.getEnd(type.name());
+        		long size = checkpoint.getSize(type.name());
+        		Date tmpstart = start;
+        		PrintWriter pw;
+        		boolean append = INCREMENTAL && done != null && file.length() >= size;
+        		if (append) {
+        			// --- continue after the checkpoint, anything written later is dropped and fetched again
+        			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        			try {
+        				raf.setLength(size);
+        			} finally {
+        				raf.close();
+        			}
+        			pw = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+        			tmpstart = addDays(DATE_INPUTFORMAT.get().parse(done), 1);
+        			System.out.println(prefix + "Continuing " + getFileName(type) + " after " + done);
+        		}
+        		else {
+        			checkpoint.remove(type.name());
+        			pw = new PrintWriter(file);
+        			pw.println (type.header);
+        			pw.flush();
+        			size = file.length();
+        		}
+        		csv.open(type, pw);
+        		if (aggregator != null && append) aggregator.resume(type, file, size);
+        		if (columns != null) columns.open(type, append);
+        		if (partitions != null) partitions.open(type, getPartitionName(type), append);
+        		if (database != null) database.open(type, getPartitionName(type), append, file, size);
+        		if (type == ActivityType.LOGINS && STITCH_SESSIONS) {
+        			sessions = new SessionStitcher(dir, checkpoint, getFileName(type));
+        			if (append) sessions.resume();
+        			output.add(sessions);
+        		}
+        		totals.put(type, 0);
+        		if (!tmpstart.after(end)) METRICS.plan(getDays(tmpstart, end));
+        		if (WINDOW_ADAPTIVE) planners.put(type, new WindowPlanner(tmpstart, end, WINDOW_MIN_DAYS, WINDOW_MIN_DAYS, WINDOW_MAX_DAYS, WINDOW_TARGET_MB * 1024L * 1024L));
+        		else planners.put(type, new WindowPlanner(tmpstart, end, WINDOW_DAYS));
+        		// --- the days that are over get windows of their own, so the checkpoint moves on to yesterday
+        		planners.get(type).splitAfter(lastClosed);
+        	}
+    	}
+
+    	/**
+    	 * Plan the requests of a poll, the days after the checkpoint up to today. The days that
+    	 * are over get windows of their own, so they are recorded in the checkpoint and not
+    	 * polled again.
+    	 * 
+    	 * @param today the current day
+    	 */
+    	void plan (Date today) throws ParseException {
+    		Date closed = getLastClosedDay();
+    		Date end = closed.after(today) ? closed : today;
+    		polling = true;
+    		previous = null;
+    		countAdded();
+    		filter.startPoll();
+    		for (ActivityType type : totals.keySet()) {
+    			String done = checkpoint.getEnd(type.name());
+    			Date from = done == null ? start : addDays(DATE_INPUTFORMAT.get().parse(done), 1);
+    			if (from.after(end)) continue;
+    			METRICS.plan(getDays(from, end));
+    			planners.put(type, new WindowPlanner(from, end, from.after(closed) ? getDays(from, end) : Math.min(WINDOW_DAYS, getDays(from, closed))));
+    		}
+    	}
+
+    	/**
+    	 * @return true if a window of this account is still to be requested
+    	 */
+    	boolean hasNext () {
+    		if (failed) return false;
+    		for (WindowPlanner planner : planners.values()) {
+    			if (planner.hasNext()) return true;
+    		}
+    		return false;
+    	}
+
+    	/**
+    	 * Submit the request of the next window. The activity type with the earliest open day
+    	 * is requested next.
+    	 * 
+    	 * @param pool the worker pool
+    	 * @param finished receives the request when it is done
+    	 */
+    	void startNext (ExecutorService pool, BlockingQueue<ActivityFetch> finished) throws ParseException, IOException {
+    		ActivityType type = null;
+    		for (ActivityType t : planners.keySet()) {
+    			Date next = planners.get(t).peek();
+    			if (planners.get(t).hasNext() && (type == null || next.before(planners.get(type).peek()))) type = t;
+    		}
+    		WindowPlanner planner = planners.get(type);
+    		Date[] window = planner.next(getCachedEnd(this, type, planner.peek()));
+    		ActivityFetch fetch = new ActivityFetch(this, type, window[0], window[1], filter != null ? filter : output, planner, finished);
+    		fetch.firstOfWindow = previous == null || !fetch.isSameWindow(previous);
+    		fetch.result = pool.submit(fetch);
+    		if (inFlight.isEmpty()) fetch.out.release();
+    		inFlight.add(fetch);
+    		previous = fetch;
+    	}
+
+    	/**
+    	 * Complete the requests at the head of the queue that are done, and release the
+    	 * records of the next one so it streams straight into the output.
+    	 */
+    	void completeFinished () throws Exception {
+    		while (!inFlight.isEmpty() && inFlight.peek().done) {
+    			completeFetch(inFlight.peek());
+    			inFlight.poll();
+    		}
+    		if (!inFlight.isEmpty()) inFlight.peek().out.release();
+    	}
+
+    	/**
+    	 * Print the result of a finished request. Its records are released to the output
+    	 * first, in case it was not the oldest request when it finished.
+    	 * 
+    	 * The window planner learns about the size of the response and windows that are over
+    	 * are recorded in the checkpoint.
+    	 * 
+    	 * @param fetch the oldest request in flight, done
+    	 */
+    	private void completeFetch (ActivityFetch fetch) throws Exception {
+        	int count;
+        	if (fetch.firstOfWindow && !polling) {
+        		System.out.println(prefix + "Retrieving info for " + DATE_INPUTFORMAT.get().format(fetch.start) + " ... " + DATE_INPUTFORMAT.get().format(fetch.end));
+        	}
+        	fetch.out.release();
+        	try {
+        		count = fetch.result.get();
+        	} catch (ExecutionException e) {
+        		METRICS.fail(fetch.metrics);
+        		if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+        		throw e;
+        	}
+        	METRICS.record(fetch.metrics);
+        	if (!polling) System.out.println(prefix + " => " + count + " " + fetch.type.label + " records found");
+        	// --- the poll filter writes fewer records than found, they are counted by countAdded()
+        	if (filter == null) addWritten(fetch.type, count);
+        	fetch.planner.record(fetch.start, fetch.end, count, fetch.bytes);
+        	if (filter != null && isClosed(fetch.end)) filter.release(fetch.type, DATE_INPUTFORMAT.get().format(fetch.end));
+        	if (isClosed(fetch.end)) {
+        		csv.flush(fetch.type);
+        		long size = new File(dir,getFileName(fetch.type)).length();
+        		if (columns != null) columns.commit(fetch.type);
+        		if (partitions != null) partitions.commit(fetch.type);
+        		if (database != null) database.commit(fetch.type, size);
+        		checkpoint.update(fetch.type.name(), DATE_INPUTFORMAT.get().format(fetch.end), size);
+        		if (filter != null) filter.prune(fetch.type, DATE_INPUTFORMAT.get().format(fetch.end));
+        	}
+        	else if (database != null) database.commit(fetch.type, -1);
+    	}
+
+    	/**
+    	 * Flush the csv files and the sketches, so the new records can be read right away, and
+    	 * print how many records the poll added.
+    	 */
+    	void finishPoll () throws IOException {
+    		StringBuilder line = new StringBuilder(prefix + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date()) + " Poll:");
+    		String separator = " ";
+    		for (ActivityType type : totals.keySet()) {
+    			csv.flush(type);
+    			int count = filter.takeAdded(type);
+    			addWritten(type, count);
+    			line.append(separator + count + " " + type.label);
+    			separator = ", ";
+    		}
+    		System.out.println(line + " records added");
+    		if (sketches != null) sketches.flush();
+    	}
+
+    	/**
+    	 * Drop the rest of a poll, or of the export before the first poll, after an error. The
+    	 * next poll requests the days after the checkpoint again, records that were written
+    	 * already are kept and not written a second time.
+    	 */
+    	void abort () {
+    		for (ActivityFetch fetch : inFlight) {
+    			fetch.out.discard();
+    			fetch.result.cancel(true);
+    		}
+    		inFlight.clear();
+    		planners.clear();
+    	}
+
+    	/**
+    	 * Stop this account after an error, the other accounts carry on. Its requests are cancelled
+    	 * and their records dropped, the output is closed. Days completed so far are kept in the
+    	 * checkpoint.
+    	 */
+    	void cancel () {
+    		failed = true;
+    		for (ActivityFetch fetch : inFlight) {
+    			fetch.out.discard();
+    			fetch.result.cancel(true);
+    		}
+    		inFlight.clear();
+    		try {
+    			output.close();
+    		} catch (IOException e) {
+    			System.err.println(prefix + "ERROR: " + e);
+    		}
+    	}
+
+    	/**
+    	 * Add the records the poll filter passed on to the totals, e.g. those of the export before
+    	 * the first poll or of a poll that failed.
+    	 */
+    	void countAdded () {
+    		for (ActivityType type : totals.keySet()) addWritten(type, filter.takeAdded(type));
+    	}
+
+    	private void addWritten (ActivityType type, int count) {
+    		totals.put(type, totals.get(type) + count);
+    		METRICS.written(name, type, count);
+    	}
+
+    	/**
+    	 * Close the output and print the record counts of this account.
+    	 */
+    	void close () throws IOException {
+        	output.close();
+        	if (filter != null) countAdded();
+			System.out.println("------------------------------------------------------------------------------");
+        	for (ActivityType type : totals.keySet()) {
+    			System.out.println(prefix + "Found "+totals.get(type)+" "+type.label+" records and stored in "+getFileName(type));
+        	}
+        	if (AGGREGATE) {
+    			System.out.println(prefix + "Summaries stored in "+ActivityAggregator.FILE_DAYS+", "+ActivityAggregator.FILE_USERS+" and "+ActivityAggregator.FILE_SPACES);
+        	}
+        	if (columns != null) {
+    			System.out.println(prefix + "Column files stored in "+DIR_COLUMNS);
+        	}
+        	if (sketches != null) {
+    			System.out.println(prefix + "Distinct user sketches stored in "+DIR_SKETCHES);
+        	}
+        	if (database != null) {
+    			System.out.println(prefix + "Records stored in the database "+getDatabaseUrl(dir));
+        	}
+        	if (partitions != null) {
+    			System.out.println(prefix + "Partitions stored per "+PARTITIONS+" and listed in "+PartitionedSink.FILE_MANIFEST);
+        	}
+        	if (sessions != null) {
+    			System.out.println(prefix + sessions.getSessions()+" sessions stored in "+SessionStitcher.FILE_SESSIONS+" ("+sessions.getMerged()+" logins merged), concurrent users in "+SessionStitcher.FILE_HOURS);
+        	}
+    	}
+    }
+
+    /**
+     * One API request, run by the worker pool. When it is done, successful or not,
+     * it puts itself into the queue of finished requests.
+     */
+    private static class ActivityFetch implements Callable<Integer> {
+    	final AccountExport account;
+    	final ActivityType type;
+    	final Date start;
+    	final Date end;
+    	final HandoffSink out;
+    	final WindowPlanner planner;
+    	final BlockingQueue<ActivityFetch> finished;
+    	final ExportMetrics.Request metrics;
+    	boolean firstOfWindow;
+    	volatile long bytes;
+    	volatile boolean done;
+    	Future<Integer> result;
+
+    	ActivityFetch (AccountExport account, ActivityType type, Date start, Date end, RecordSink target, WindowPlanner planner, BlockingQueue<ActivityFetch> finished) {
+    		this.account = account;
+    		this.type = type;
+    		this.start = start;
+    		this.end = end;
+    		this.metrics = new ExportMetrics.Request(account.name, type, DATE_INPUTFORMAT.get().format(start), DATE_INPUTFORMAT.get().format(end), getDays(start, end));
+    		this.out = new HandoffSink(type, target, metrics);
+    		this.planner = planner;
+    		this.finished = finished;
+    	}
+
+    	boolean isSameWindow (ActivityFetch other) {
+    		return start.equals(other.start) && end.equals(other.end);
+    	}
+
+    	public Integer call() throws Exception {
+    		try {
+    			long started = System.nanoTime();
+    			CountingInputStream restApiStream = new CountingInputStream(getActivityData(account, type.name(), start, end));
+    			long received = System.nanoTime();
+    			metrics.latencyNanos = received - started;
+    			try {
+    				metrics.records = processData(type, restApiStream, out, metrics);
+    				return metrics.records;
+    			} finally {
+    				metrics.processNanos = System.nanoTime() - received;
+    				bytes = restApiStream.getByteCount();
+    				metrics.bytes = bytes;
+    				restApiStream.close();
+    			}
+    		} finally {
+    			done = true;
+    			finished.add(this);
+    		}
+    	}
+    }
+
+    /**
+     * Keeps the records of a request in memory until release() is called, from then on everything
+     * is passed through to the target. This way requests can run ahead while the output is still
+     * written in order, and the oldest request streams straight into the output.
      * 
-     * @param restApiURLConnection The open connection to the REST API.
+     * A request that runs ahead keeps at most HANDOFF_RECORDS records, then its worker waits
+     * until it is released, so the memory does not grow with the window size. The oldest request
+     * was submitted first and never waits for a younger one, so it always gets a worker.
      */
-    private static void addAuthenticationHeader(HttpURLConnection restApiURLConnection) {
-        String userPwd = REST_API_USERNAME + ":" + REST_API_PASSWORD;
-        String encoded = DatatypeConverter.printBase64Binary(userPwd.getBytes());
-        restApiURLConnection.setRequestProperty("Authorization", "Basic " + encoded);
+    private static class HandoffSink implements RecordSink {
+    	private static final int HANDOFF_RECORDS = 10000;
+    	private final ActivityType type;
+    	private final RecordSink target;
+    	private final ExportMetrics.Request metrics;
+    	private List<String[]> buffer = new ArrayList<String[]>();
+    	private boolean discarded;
+
+    	HandoffSink (ActivityType type, RecordSink target, ExportMetrics.Request metrics) {
+    		this.type = type;
+    		this.target = target;
+    		this.metrics = metrics;
+    	}
+
+    	synchronized void release () throws IOException {
+    		if (buffer == null) return;
+    		long started = System.nanoTime();
+    		for (String[] values : buffer) target.write(type, values);
+    		buffer = null;
+    		metrics.releaseNanos += System.nanoTime() - started;
+    		notifyAll();
+    	}
+
+    	/**
+    	 * Drop everything received, before and after this call.
+    	 */
+    	synchronized void discard () {
+    		buffer = null;
+    		discarded = true;
+    		notifyAll();
+    	}
+
+    	public synchronized void write (ActivityType type, String[] values) throws IOException {
+    		while (buffer != null && buffer.size() >= HANDOFF_RECORDS && !discarded) {
+    			try {
+    				wait();
+    			} catch (InterruptedException e) {
+    				throw new InterruptedIOException("Request cancelled");
+    			}
+    		}
+    		if (discarded) return;
+    		long started = System.nanoTime();
+    		if (buffer != null) buffer.add(values);
+    		else target.write(type, values);
+    		metrics.writeNanos += System.nanoTime() - started;
+    	}
+
+    	public void close () {
+    		// the target is closed by its owner
+    	}
     }
 }
@@ -0,0 +1,98 @@
+/**
+ * Checkpoint
+ *
+ * Progress of an export, stored next to the csv files in the output directory.
+ *
+ * @version 1.3
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Keeps the last completed time window for each activity type together with the size of
+ * its csv file at that point. An incremental run cuts the file back to that size, which
+ * drops anything written after the checkpoint, and continues with the following day.
+ *
+ * Only windows that lie completely in the past are checkpointed, so records of the current
+ * day are fetched again on the next run instead of being duplicated.
+ */
+public class Checkpoint {
+
+    private final File file;
+    private final Properties props = new Properties();
+
+    /**
+     * @param file the checkpoint file, loaded if it exists
+     */
+    public Checkpoint (File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @return the last completed day as yyyy-MM-dd or null if there is none
+     */
+    public synchronized String getEnd (String type) {
+        return props.getProperty(type + ".end");
+    }
+
+    /**
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @return the size of the csv file after the last completed day, -1 if there is none
+     */
+    public synchronized long getSize (String type) {
+        String size = props.getProperty(type + ".size");
+        return size == null ? -1 : Long.parseLong(size);
+    }
+
+    /**
+     * Record a completed window and save the checkpoint file.
+     *
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @param end the last day of the window as yyyy-MM-dd
+     * @param size the size of the csv file including the window
+     */
+    public synchronized void update (String type, String end, long size) throws IOException {
+        props.setProperty(type + ".end", end);
+        props.setProperty(type + ".size", Long.toString(size));
+        save();
+    }
+
+    /**
+     * Forget the progress of an activity type, e.g. because its csv file is written from scratch.
+     *
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     */
+    public synchronized void remove (String type) throws IOException {
+        if (props.remove(type + ".end") != null | props.remove(type + ".size") != null) save();
+    }
+
+    /**
+     * Write to a temporary file first, a killed run must not leave a broken checkpoint behind.
+     */
+    private void save () throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "BwlUserStats checkpoint");
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
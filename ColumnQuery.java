@@ -0,0 +1,175 @@
+/**
+ * ColumnQuery
+ *
+ * Looks up records in the column files written by ColumnStore.
+ *
+ * @version 1.3
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Properties;
+
+/**
+ * Filters the records of a column store by time range, user and space and prints them as csv.
+ * The column files are memory mapped, blocks outside the time range are skipped by their
+ * index entry, and user and space are compared as dictionary ids, so a lookup reads only
+ * a small part of the data.
+ */
+public class ColumnQuery {
+
+    private static String USAGE = "Usage: BwlUserStats query <path> [optional_arguments]\n"
+            + "  <path>      Directory of the column store, e.g. <csv directory>/columns\n"
+            + "Optional arguments:\n"
+            + "  -h          This help message\n"
+            + "  -t <type>   Activity type LOGINS, COMMENTS, ITEMS_CHANGED or ITEMS_VIEWED, default=all\n"
+            + "  -s <date>   Start date (YYYY-MM-DD)\n"
+            + "  -e <date>   End date\n"
+            + "  -u <user>   User\n"
+            + "  -space <s>  Space name\n"
+            ;
+
+    private final File dir;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private String user = null;
+    private String space = null;
+
+    /**
+     * @param dir the directory of the column store
+     */
+    public ColumnQuery (File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Run a query from the command line, the arguments following "query".
+     */
+    public static void main (String[] args) {
+        int i = 1;
+        if (args.length < 1) printErrorAndExit("missing path of the column store");
+        if (args[0].equals("-h")) printErrorAndExit("");
+        ColumnQuery query = new ColumnQuery(new File(args[0]));
+        ActivityType only = null;
+        try {
+            while (i < args.length) {
+                String arg = args[i++];
+                if (i >= args.length) printErrorAndExit("option " + arg + " requires a value");
+                if (arg.equals("-t")) only = ActivityType.valueOf(args[i++]);
+                else if (arg.equals("-s")) query.from = TimestampConverter.toEpochSecond(args[i++] + " 00:00:00");
+                else if (arg.equals("-e")) query.to = TimestampConverter.toEpochSecond(args[i++] + " 23:59:59");
+                else if (arg.equals("-u")) query.user = args[i++];
+                else if (arg.equals("-space")) query.space = args[i++];
+                else printErrorAndExit("unknown command line option " + arg);
+            }
+        } catch (ParseException e) {
+            printErrorAndExit("could not parse given start or end date");
+        } catch (IllegalArgumentException e) {
+            printErrorAndExit("unknown activity type");
+        }
+
+        try {
+            long started = System.nanoTime();
+            long count = 0;
+            for (ActivityType type : ActivityType.values()) {
+                if (only != null && type != only) continue;
+                if (!new File(new File(query.dir, type.name()), ColumnStore.FILE_PROPERTIES).exists()) continue;
+                count += query.run(type, System.out);
+            }
+            System.err.println(count + " records found in " + (System.nanoTime() - started) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print the matching records of one activity type as csv, including the header.
+     *
+     * @param type the activity type
+     * @param out the stream to print to
+     * @return the number of matching records
+     */
+    public long run (ActivityType type, PrintStream out) throws IOException {
+        File typeDir = new File(dir, type.name());
+        String[] columns = ColumnStore.getColumns(type);
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(new File(typeDir, ColumnStore.FILE_PROPERTIES));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        int rows = Integer.parseInt(props.getProperty("rows", "0"));
+
+        // --- dictionaries and the ids to filter by, a value that is not in the store matches nothing
+        StringDictionary[] dicts = new StringDictionary[columns.length];
+        IntBuffer[] cols = new IntBuffer[columns.length];
+        int userColumn = type.userColumn();
+        int spaceColumn = type == ActivityType.LOGINS ? -1 : 1;
+        for (int c = 0; c < columns.length; c++) {
+            cols[c] = map(new File(typeDir, columns[c] + ".col")).asIntBuffer();
+            File dictFile = new File(typeDir, columns[c] + ".dict");
+            if (dictFile.exists()) {
+                dicts[c] = new StringDictionary();
+                ColumnStore.readDictionary(dictFile, dicts[c]);
+            }
+        }
+        int userId = user == null ? -1 : dicts[userColumn].find(user);
+        int spaceId = space == null || spaceColumn < 0 ? -1 : dicts[spaceColumn].find(space);
+        out.println(type.header);
+        if ((user != null && userId < 0) || (space != null && spaceId < 0)) return 0;
+
+        LongBuffer idx = map(new File(typeDir, "Time.idx")).asLongBuffer();
+        IntBuffer time = cols[0];
+        IntBuffer userCol = cols[userColumn];
+        IntBuffer spaceCol = spaceColumn < 0 ? null : cols[spaceColumn];
+        StringBuilder line = new StringBuilder();
+        long count = 0;
+        for (int block = 0; block * ColumnStore.BLOCK_ROWS < rows; block++) {
+            long base = idx.get(block * 3);
+            if (idx.get(block * 3 + 2) < from || idx.get(block * 3 + 1) > to) continue;
+            int last = Math.min(rows, (block + 1) * ColumnStore.BLOCK_ROWS);
+            for (int row = block * ColumnStore.BLOCK_ROWS; row < last; row++) {
+                if (userId >= 0 && userCol.get(row) != userId) continue;
+                if (spaceId >= 0 && spaceCol.get(row) != spaceId) continue;
+                long t = base + time.get(row);
+                if (t < from || t > to) continue;
+                count++;
+
+                line.setLength(0);
+                line.append(TimestampConverter.toCsv(t));
+                for (int c = 1; c < columns.length; c++) {
+                    line.append(',');
+                    if (dicts[c] != null) line.append(CsvSink.escape(dicts[c].decode(cols[c].get(row))));
+                    else if (cols[c].get(row) >= 0) line.append(TimestampConverter.toCsv(t + cols[c].get(row)));
+                }
+                out.println(line);
+            }
+        }
+        return count;
+    }
+
+    private static MappedByteBuffer map (File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void printErrorAndExit (String message) {
+        if (message.length() > 0) System.err.println("ERROR: "+message);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+}
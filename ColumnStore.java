@@ -0,0 +1,315 @@
+/**
+ * ColumnStore
+ *
+ * Compact binary column files of the activity records, an alternative to the csv files.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stores the records of each activity type column by column in its own directory:
+ * <pre>
+ *   &lt;dir&gt;/&lt;type&gt;/Time.col        int per record, seconds relative to the first record of its block
+ *   &lt;dir&gt;/&lt;type&gt;/Time.idx        per block of BLOCK_ROWS records: base, min and max time as long
+ *   &lt;dir&gt;/&lt;type&gt;/EndTime.col     logins only, int seconds after Time, -1 if still logged in
+ *   &lt;dir&gt;/&lt;type&gt;/&lt;column&gt;.col    int id per record for all other columns
+ *   &lt;dir&gt;/&lt;type&gt;/&lt;column&gt;.dict   the distinct values of a column, id = position
+ *   &lt;dir&gt;/&lt;type&gt;/store.properties   number of records, committed records and dictionary sizes
+ * </pre>
+ * All numbers are big-endian and fixed width, so the .col and .idx files can be memory mapped
+ * and read at any record, see ColumnQuery. Times are seconds since the epoch.
+ *
+ * The store can be continued by a later run. Only committed records count: opening a store
+ * for appending cuts off everything written after the last commit, in line with the
+ * checkpoint of the csv files. close() makes the records of a window that is still open
+ * readable, but does not commit them, they are fetched again by the next run.
+ */
+public class ColumnStore implements RecordSink {
+
+    public static final int BLOCK_ROWS = 4096;
+    public static final String FILE_PROPERTIES = "store.properties";
+
+    private final File dir;
+    private final Map<ActivityType,TypeStore> stores = new EnumMap<ActivityType,TypeStore>(ActivityType.class);
+
+    /**
+     * @param dir the directory of the store, one subdirectory per activity type
+     */
+    public ColumnStore (File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param type the activity type to store
+     * @param append true to continue after the last commit, false to start an empty store
+     */
+    public void open (ActivityType type, boolean append) throws IOException {
+        File typeDir = new File(dir, type.name());
+        if (!append && typeDir.exists()) FileUtils.deleteDirectory(typeDir);
+        FileUtils.forceMkdir(typeDir);
+        stores.put(type, new TypeStore(type, typeDir));
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        stores.get(type).write(values);
+    }
+
+    /**
+     * Make the records written so far permanent.
+     *
+     * @param type the activity type
+     */
+    public void commit (ActivityType type) throws IOException {
+        stores.get(type).commit();
+    }
+
+    /**
+     * Close all activity types, the records after the last commit are kept for reading only.
+     */
+    public void close () throws IOException {
+        for (TypeStore store : stores.values()) store.close();
+    }
+
+    /**
+     * @param type the activity type
+     * @return the column names, i.e. the columns of the csv header
+     */
+    static String[] getColumns (ActivityType type) {
+        return type.header.split(",");
+    }
+
+    /**
+     * The column files of one activity type.
+     */
+    private static class TypeStore {
+        private final File dir;
+        private final String[] columns;
+        private final StringDictionary[] dicts;
+        private final DataOutputStream[] dictOut;
+        private final long[] dictBytes;
+        private final long[] committedDictBytes;
+        private final DataOutputStream[] colOut;
+        private final DataOutputStream idxOut;
+        private long rows;
+        private long committed;
+        private long blockBase;
+        private long blockMin;
+        private long blockMax;
+
+        TypeStore (ActivityType type, File dir) throws IOException {
+            this.dir = dir;
+            this.columns = getColumns(type);
+            this.dicts = new StringDictionary[columns.length];
+            this.dictOut = new DataOutputStream[columns.length];
+            this.dictBytes = new long[columns.length];
+            this.committedDictBytes = new long[columns.length];
+            this.colOut = new DataOutputStream[columns.length];
+
+            // --- cut off anything after the last commit
+            Properties props = new Properties();
+            File propsFile = new File(dir, FILE_PROPERTIES);
+            if (propsFile.exists()) {
+                InputStream in = new FileInputStream(propsFile);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            committed = Long.parseLong(props.getProperty("committed", "0"));
+            rows = committed;
+            long blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+            truncate(new File(dir, "Time.idx"), blocks * 24);
+            for (int c = 0; c < columns.length; c++) {
+                truncate(new File(dir, columns[c] + ".col"), rows * 4);
+                if (isDictionaryColumn(c)) {
+                    dicts[c] = new StringDictionary();
+                    File dictFile = new File(dir, columns[c] + ".dict");
+                    dictBytes[c] = Long.parseLong(props.getProperty(columns[c] + ".committedDictBytes", "0"));
+                    committedDictBytes[c] = dictBytes[c];
+                    truncate(dictFile, dictBytes[c]);
+                    readDictionary(dictFile, dicts[c]);
+                    dictOut[c] = openAppend(dictFile);
+                }
+                colOut[c] = openAppend(new File(dir, columns[c] + ".col"));
+            }
+            if (rows % BLOCK_ROWS != 0) restoreBlock(blocks - 1);
+            idxOut = openAppend(new File(dir, "Time.idx"));
+        }
+
+        void write (String[] values) throws IOException {
+            long time = toEpochSecond(values[0]);
+            if (rows % BLOCK_ROWS == 0) {
+                blockBase = blockMin = blockMax = time;
+            }
+            blockMin = Math.min(blockMin, time);
+            blockMax = Math.max(blockMax, time);
+            colOut[0].writeInt((int) (time - blockBase));
+            for (int c = 1; c < columns.length; c++) {
+                if (dicts[c] == null) {
+                    // --- EndTime
+                    colOut[c].writeInt(values[c].length() == 0 ? -1 : (int) (toEpochSecond(values[c]) - time));
+                }
+                else {
+                    int size = dicts[c].size();
+                    int id = dicts[c].encode(values[c]);
+                    if (id == size) {
+                        dictOut[c].writeUTF(values[c]);
+                    }
+                    colOut[c].writeInt(id);
+                }
+            }
+            rows++;
+            if (rows % BLOCK_ROWS == 0) writeBlock();
+        }
+
+        void commit () throws IOException {
+            writeState(true);
+        }
+
+        /**
+         * Flush the files and write the properties: all records for readers, the committed ones
+         * for a later run.
+         *
+         * @param commit true to commit the records written so far
+         */
+        private void writeState (boolean commit) throws IOException {
+            // --- the index entry of an incomplete block is rewritten every time
+            idxOut.flush();
+            File idxFile = new File(dir, "Time.idx");
+            long fullBlocks = rows / BLOCK_ROWS;
+            truncate(idxFile, fullBlocks * 24);
+            if (rows % BLOCK_ROWS != 0) {
+                RandomAccessFile raf = new RandomAccessFile(idxFile, "rw");
+                try {
+                    raf.seek(fullBlocks * 24);
+                    raf.writeLong(blockBase);
+                    raf.writeLong(blockMin);
+                    raf.writeLong(blockMax);
+                } finally {
+                    raf.close();
+                }
+            }
+
+            Properties props = new Properties();
+            for (int c = 0; c < columns.length; c++) {
+                colOut[c].flush();
+                if (dictOut[c] != null) {
+                    dictOut[c].flush();
+                    dictBytes[c] = new File(dir, columns[c] + ".dict").length();
+                    if (commit) committedDictBytes[c] = dictBytes[c];
+                    props.setProperty(columns[c] + ".dictBytes", Long.toString(dictBytes[c]));
+                    props.setProperty(columns[c] + ".committedDictBytes", Long.toString(committedDictBytes[c]));
+                    props.setProperty(columns[c] + ".dictSize", Integer.toString(dicts[c].size()));
+                }
+            }
+            if (commit) committed = rows;
+            props.setProperty("rows", Long.toString(rows));
+            props.setProperty("committed", Long.toString(committed));
+            props.setProperty("blockRows", Integer.toString(BLOCK_ROWS));
+            File tmp = new File(dir, FILE_PROPERTIES + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, "BwlUserStats column store");
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), new File(dir, FILE_PROPERTIES).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void close () throws IOException {
+            writeState(false);
+            idxOut.close();
+            for (int c = 0; c < columns.length; c++) {
+                colOut[c].close();
+                if (dictOut[c] != null) dictOut[c].close();
+            }
+        }
+
+        private boolean isDictionaryColumn (int c) {
+            return c > 0 && !columns[c].equals("EndTime");
+        }
+
+        private void writeBlock () throws IOException {
+            // --- a partial entry of this block may have been written by a commit
+            idxOut.flush();
+            truncate(new File(dir, "Time.idx"), (rows / BLOCK_ROWS - 1) * 24);
+            idxOut.writeLong(blockBase);
+            idxOut.writeLong(blockMin);
+            idxOut.writeLong(blockMax);
+        }
+
+        /**
+         * Recover the state of the last, incomplete block when continuing a store.
+         */
+        private void restoreBlock (long block) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, "Time.idx"), "r");
+            try {
+                raf.seek(block * 24);
+                blockBase = raf.readLong();
+                blockMin = raf.readLong();
+                blockMax = raf.readLong();
+            } finally {
+                raf.close();
+            }
+        }
+
+        private static long toEpochSecond (String csvTime) throws IOException {
+            try {
+                return TimestampConverter.toEpochSecond(csvTime);
+            } catch (ParseException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @param file a dictionary file
+     * @param dict receives the values in the order of their ids
+     */
+    static void readDictionary (File file, StringDictionary dict) throws IOException {
+        if (!file.exists()) return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            while (true) dict.encode(in.readUTF());
+        } catch (EOFException e) {
+            // end of dictionary
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataOutputStream openAppend (File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+    }
+
+    private static void truncate (File file, long size) throws IOException {
+        if (!file.exists() || file.length() <= size) return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+}
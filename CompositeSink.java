@@ -0,0 +1,44 @@
+/**
+ * CompositeSink
+ *
+ * Passes the activity records on to several sinks.
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forwards every record to all added sinks, in the order they were added.
+ */
+public class CompositeSink implements RecordSink {
+
+    private final List<RecordSink> sinks = new ArrayList<RecordSink>();
+
+    /**
+     * @param sink the sink to add
+     */
+    public void add (RecordSink sink) {
+        sinks.add(sink);
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        for (RecordSink sink : sinks) sink.write(type, values);
+    }
+
+    /**
+     * Close all sinks, an error of one sink does not keep the others from closing.
+     */
+    public void close () throws IOException {
+        IOException error = null;
+        for (RecordSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+}
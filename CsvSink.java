@@ -0,0 +1,139 @@
+/**
+ * CsvSink
+ *
+ * Writes the activity records to csv files.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One csv file per activity type, the values separated by commas. A value with a comma, a
+ * quote or a line break, e.g. the name of a space or process, is put in quotes with its
+ * quotes doubled (RFC 4180).
+ */
+public class CsvSink implements RecordSink {
+
+    private final Map<ActivityType,PrintWriter> writers = new EnumMap<ActivityType,PrintWriter>(ActivityType.class);
+
+    /**
+     * @param type the activity type
+     * @param pw the opened csv file, header already written if needed
+     */
+    public void open (ActivityType type, PrintWriter pw) {
+        writers.put(type, pw);
+    }
+
+    public void write (ActivityType type, String[] values) {
+        PrintWriter pw = writers.get(type);
+        pw.print(values[0]);
+        for (int i = 1; i < values.length; i++) {
+            pw.print(',');
+            pw.print(escape(values[i]));
+        }
+        pw.println();
+    }
+
+    /**
+     * @param value a csv value
+     * @return the value as it is, or in quotes if it contains a comma, a quote or a line break
+     */
+    public static String escape (String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+
+    /**
+     * Read the next record of a csv file, a value in quotes may span lines.
+     *
+     * @param reader the csv file
+     * @return the record, its lines joined by line feeds, or null at the end of the file
+     */
+    public static String readRecord (BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) return null;
+        int quotes = quotes(line);
+        if (quotes % 2 == 0) return line;
+        StringBuilder record = new StringBuilder(line);
+        while (quotes % 2 != 0 && (line = reader.readLine()) != null) {
+            record.append('\n').append(line);
+            quotes += quotes(line);
+        }
+        return record.toString();
+    }
+
+    private static int quotes (String line) {
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') count++;
+        }
+        return count;
+    }
+
+    /**
+     * Split a csv line into its values, quoted values are unquoted. Like String.split with a
+     * limit, the last value is the rest of the line, so lines written before values were quoted
+     * can still be read if only the last column contains commas.
+     *
+     * @param line the line
+     * @param limit the number of values at most
+     * @return the values, fewer than the limit if the line has fewer
+     */
+    public static String[] split (String line, int limit) {
+        List<String> values = new ArrayList<String>(limit);
+        int pos = 0;
+        while (values.size() < limit - 1) {
+            if (pos < line.length() && line.charAt(pos) == '"') {
+                StringBuilder value = new StringBuilder();
+                int i = pos + 1;
+                while (i < line.length()) {
+                    char c = line.charAt(i++);
+                    if (c != '"') value.append(c);
+                    else if (i < line.length() && line.charAt(i) == '"') value.append(line.charAt(i++));
+                    else break;
+                }
+                values.add(value.toString());
+                if (i >= line.length()) return values.toArray(new String[values.size()]);
+                pos = i + 1;
+            }
+            else {
+                int comma = line.indexOf(',', pos);
+                if (comma < 0) break;
+                values.add(line.substring(pos, comma));
+                pos = comma + 1;
+            }
+        }
+        String rest = line.substring(Math.min(pos, line.length()));
+        if (rest.length() >= 2 && rest.charAt(0) == '"' && rest.charAt(rest.length() - 1) == '"') {
+            rest = rest.substring(1, rest.length() - 1).replace("\"\"", "\"");
+        }
+        values.add(rest);
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Write buffered lines to the file, e.g. before its size is recorded in the checkpoint.
+     *
+     * @param type the activity type
+     */
+    public void flush (ActivityType type) throws IOException {
+        PrintWriter pw = writers.get(type);
+        pw.flush();
+        if (pw.checkError()) throw new IOException("Error writing csv file for " + type.label + " records");
+    }
+
+    public void close () throws IOException {
+        for (PrintWriter pw : writers.values()) {
+            pw.flush(); pw.close ();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * DuplicateFilter
+ *
+ * Passes on only the records that were not written before, for polling the same days again.
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the records written per activity type and day by a 64 bit hash of their values. A
+ * poll that requests days again passes on a record only when it occurs more often in this poll
+ * than it was written before, so records that are repeated by the API, e.g. two views of the
+ * same item in the same second, are kept as often as they occur.
+ *
+ * Only the days after the checkpoint are polled again, the counts of older days are dropped
+ * by prune(). The counts are kept in primitive arrays with open addressing, 16 bytes per slot.
+ *
+ * A login without end time is held back, it is reported again with its end time once the
+ * session is over and would be written twice. The open logins are collected anew by every
+ * poll and passed on only when their day is checkpointed, see release(); until then they are
+ * not in the output.
+ */
+public class DuplicateFilter implements RecordSink {
+
+    private final RecordSink target;
+    private final Map<ActivityType,TreeMap<String,DayCounts>> types = new EnumMap<ActivityType,TreeMap<String,DayCounts>>(ActivityType.class);
+    private final Map<ActivityType,Integer> added = new EnumMap<ActivityType,Integer>(ActivityType.class);
+    private final TreeMap<String,List<String[]>> openLogins = new TreeMap<String,List<String[]>>();
+
+    /**
+     * @param target receives the new records
+     */
+    public DuplicateFilter (RecordSink target) {
+        this.target = target;
+    }
+
+    /**
+     * Start to count the records of a new poll, the records of earlier polls are not passed
+     * on again.
+     */
+    public void startPoll () {
+        for (TreeMap<String,DayCounts> days : types.values()) {
+            for (DayCounts counts : days.values()) Arrays.fill(counts.seen, 0);
+        }
+        openLogins.clear();
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        String day = values[0].length() < 10 ? values[0] : values[0].substring(0, 10);
+        if (type == ActivityType.LOGINS && values[1].length() == 0) {
+            List<String[]> logins = openLogins.get(day);
+            if (logins == null) {
+                logins = new ArrayList<String[]>();
+                openLogins.put(day, logins);
+            }
+            logins.add(values);
+            return;
+        }
+        add(type, day, values);
+    }
+
+    private void add (ActivityType type, String day, String[] values) throws IOException {
+        TreeMap<String,DayCounts> days = types.get(type);
+        if (days == null) {
+            days = new TreeMap<String,DayCounts>();
+            types.put(type, days);
+        }
+        DayCounts counts = days.get(day);
+        if (counts == null) {
+            counts = new DayCounts();
+            days.put(day, counts);
+        }
+        if (counts.add(hash(values))) {
+            target.write(type, values);
+            Integer count = added.get(type);
+            added.put(type, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Pass on the open logins up to the given day, before it is checkpointed: they stay open
+     * in the output, as the day is not polled again.
+     *
+     * @param type the activity type
+     * @param day the last day to pass on as yyyy-MM-dd
+     */
+    public void release (ActivityType type, String day) throws IOException {
+        if (type != ActivityType.LOGINS) return;
+        Map<String,List<String[]>> days = openLogins.headMap(day, true);
+        for (Map.Entry<String,List<String[]>> e : days.entrySet()) {
+            for (String[] values : e.getValue()) add(type, e.getKey(), values);
+        }
+        days.clear();
+    }
+
+    /**
+     * Drop the counts of the days before the given one, they are not polled again.
+     *
+     * @param type the activity type
+     * @param day the first day to keep as yyyy-MM-dd
+     */
+    public void prune (ActivityType type, String day) {
+        TreeMap<String,DayCounts> days = types.get(type);
+        if (days != null) days.headMap(day).clear();
+    }
+
+    /**
+     * @param type the activity type
+     * @return the number of records passed on since the last call, counting starts anew
+     */
+    public int takeAdded (ActivityType type) {
+        Integer count = added.remove(type);
+        return count == null ? 0 : count;
+    }
+
+    public void close () {
+        // the target is closed by its owner
+    }
+
+    /**
+     * FNV-1a over the values, separated by a character that does not occur in them.
+     */
+    private static long hash (String[] values) {
+        long h = 0xcbf29ce484222325L;
+        for (String value : values) {
+            for (int i = 0; i < value.length(); i++) {
+                h = (h ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            h = (h ^ 0xFFFF) * 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * How often a record was written in total and seen in the current poll, by hash.
+     */
+    private static class DayCounts {
+        long[] keys = new long[64];
+        int[] written = new int[64];
+        int[] seen = new int[64];
+        int size;
+
+        /**
+         * @return true if the record is new, i.e. seen more often than written
+         */
+        boolean add (long key) {
+            int slot = find(key);
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                if (++size * 2 > keys.length) {
+                    rehash();
+                    slot = find(key);
+                }
+            }
+            if (++seen[slot] <= written[slot]) return false;
+            written[slot]++;
+            return true;
+        }
+
+        private int find (long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void rehash () {
+            long[] oldKeys = keys;
+            int[] oldWritten = written, oldSeen = seen;
+            keys = new long[oldKeys.length * 2];
+            written = new int[keys.length];
+            seen = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                written[slot] = oldWritten[i];
+                seen[slot] = oldSeen[i];
+            }
+        }
+    }
+}
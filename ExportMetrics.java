@@ -0,0 +1,367 @@
+/**
+ * ExportMetrics
+ *
+ * Timings and counters of the API requests of an export, with a progress line while it runs.
+ *
+ * @version 1.3
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.OrderedJSONObject;
+
+/**
+ * Collects a Request per API call and writes them when the export is over:
+ * <pre>
+ *   metrics.json   totals of the export, per account and activity type, and every request
+ *   metrics.prom   the totals per account and activity type in the Prometheus text format
+ * </pre>
+ * In poll mode only the totals are kept over the polls, the requests are those of the last
+ * poll, so memory and metrics.json do not grow with the uptime.
+ * The time of a request is split into stages:
+ * <pre>
+ *   latency  getActivityData, until the response headers arrived (with retries and rate limit waits)
+ *   parse    reading the response and picking the fields, the rest of the processing time
+ *   format   converting the time stamps to the csv format
+ *   write    handing the records to the output, also when they were held back until the
+ *            request became the oldest one in flight
+ * </pre>
+ * Reading and parsing overlap when the response is streamed, so a slow download shows up as
+ * parse time. The metrics are only touched by the thread that completes the requests; a Request
+ * is filled in by the worker that runs it and handed over with its result.
+ */
+public class ExportMetrics {
+
+    public static final String FILE_JSON = "metrics.json";
+    public static final String FILE_PROMETHEUS = "metrics.prom";
+
+    private static final String PREFIX = "bwluserstats_";
+
+    private final long started = System.nanoTime();
+    private final long startedMillis = System.currentTimeMillis();
+    private final List<Request> requests = new ArrayList<Request>();
+    private final Map<String,Totals> totals = new LinkedHashMap<String,Totals>();
+    private long records;
+    private long written;
+    private long bytes;
+    private long plannedDays;
+    private long completedDays;
+    private long lastProgress = System.nanoTime();
+
+    /**
+     * The stages of one API request, see ExportMetrics.
+     */
+    public static class Request {
+        final String account;
+        final ActivityType type;
+        final String start;
+        final String end;
+        final int days;
+        long latencyNanos;
+        long processNanos;
+        long formatNanos;
+        long writeNanos;
+        long releaseNanos;
+        long bytes;
+        int records;
+
+        /**
+         * @param account the account name
+         * @param type the activity type
+         * @param start the first day of the window as yyyy-MM-dd
+         * @param end the last day of the window as yyyy-MM-dd
+         * @param days the number of days of the window
+         */
+        public Request (String account, ActivityType type, String start, String end, int days) {
+            this.account = account;
+            this.type = type;
+            this.start = start;
+            this.end = end;
+            this.days = days;
+        }
+
+        /**
+         * @return the processing time that was neither spent on time stamps nor on writing
+         */
+        long getParseNanos () {
+            return Math.max(0, processNanos - formatNanos - writeNanos);
+        }
+
+        /**
+         * @return the time spent writing, by the worker and when the records were released
+         */
+        long getWriteNanos () {
+            return writeNanos + releaseNanos;
+        }
+
+        long getNanos () {
+            return latencyNanos + processNanos + releaseNanos;
+        }
+    }
+
+    /**
+     * Sums of the requests of an account and activity type.
+     */
+    private static class Totals {
+        final String account;
+        final ActivityType type;
+        int requests;
+        int failed;
+        long records;
+        long written;
+        long bytes;
+        long latencyNanos;
+        long maxLatencyNanos;
+        long parseNanos;
+        long formatNanos;
+        long writeNanos;
+        long nanos;
+
+        Totals (String account, ActivityType type) {
+            this.account = account;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Add days that are to be requested, used for the progress and its ETA.
+     *
+     * @param days the number of days
+     */
+    public void plan (long days) {
+        plannedDays += days;
+    }
+
+    /**
+     * Forget the requests so far, before a poll. The totals are kept.
+     */
+    public void startPoll () {
+        requests.clear();
+    }
+
+    /**
+     * Add a completed request.
+     *
+     * @param request the request, its result has been taken
+     */
+    public void record (Request request) {
+        requests.add(request);
+        Totals t = getTotals(request.account, request.type);
+        t.requests++;
+        t.records += request.records;
+        t.bytes += request.bytes;
+        t.latencyNanos += request.latencyNanos;
+        t.maxLatencyNanos = Math.max(t.maxLatencyNanos, request.latencyNanos);
+        t.parseNanos += request.getParseNanos();
+        t.formatNanos += request.formatNanos;
+        t.writeNanos += request.getWriteNanos();
+        t.nanos += request.getNanos();
+        records += request.records;
+        bytes += request.bytes;
+        completedDays += request.days;
+    }
+
+    /**
+     * Add records that were written to the output. They are fewer than the records of the
+     * requests when polling, records that were written before are left out.
+     *
+     * @param account the account name
+     * @param type the activity type
+     * @param records the number of records
+     */
+    public void written (String account, ActivityType type, long records) {
+        getTotals(account, type).written += records;
+        written += records;
+    }
+
+    /**
+     * Count a request that failed.
+     *
+     * @param request the request
+     */
+    public void fail (Request request) {
+        getTotals(request.account, request.type).failed++;
+    }
+
+    private Totals getTotals (String account, ActivityType type) {
+        String key = account + "/" + type.name();
+        Totals t = totals.get(key);
+        if (t == null) {
+            t = new Totals(account, type);
+            totals.put(key, t);
+        }
+        return t;
+    }
+
+    /**
+     * Print a line with the throughput so far and the estimated time left, if the
+     * last one is at least the given number of seconds ago.
+     *
+     * @param seconds the interval of the progress lines
+     */
+    public void printProgress (int seconds) {
+        long now = System.nanoTime();
+        if (now - lastProgress < seconds * 1000000000L) return;
+        lastProgress = now;
+        double elapsed = (now - started) / 1e9;
+        String eta = "unknown";
+        if (completedDays > 0) {
+            long left = Math.round(elapsed * Math.max(0, plannedDays - completedDays) / completedDays);
+            eta = String.format(Locale.ROOT, "%d:%02d:%02d", left / 3600, left / 60 % 60, left % 60);
+        }
+        System.out.println(String.format(Locale.ROOT, "Progress: %d of %d days (%.0f%%), %d records, %.0f records/s, %.2f MB/s, ETA %s",
+                completedDays, plannedDays, plannedDays == 0 ? 100.0 : 100.0 * completedDays / plannedDays,
+                records, records / elapsed, bytes / elapsed / (1024 * 1024), eta));
+    }
+
+    /**
+     * Write metrics.json and metrics.prom.
+     *
+     * @param dir the output directory
+     */
+    public void write (File dir) throws IOException {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        FileUtils.forceMkdir(dir);
+        Writer w = new OutputStreamWriter(FileUtils.openOutputStream(new File(dir, FILE_JSON)), StandardCharsets.UTF_8);
+        try {
+            toJson(seconds).write(w, true);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            w.close();
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(FileUtils.openOutputStream(new File(dir, FILE_PROMETHEUS)), StandardCharsets.UTF_8));
+        try {
+            writePrometheus(pw, seconds);
+        } finally {
+            pw.close();
+        }
+    }
+
+    private OrderedJSONObject toJson (double seconds) throws JSONException {
+        OrderedJSONObject json = new OrderedJSONObject();
+        json.put("started", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new Date(startedMillis)));
+        json.put("seconds", round(seconds));
+        json.put("records", records);
+        json.put("writtenRecords", written);
+        json.put("bytes", bytes);
+        json.put("recordsPerSecond", round(records / seconds));
+        json.put("plannedDays", plannedDays);
+        json.put("completedDays", completedDays);
+        JSONArray types = new JSONArray();
+        for (Totals t : totals.values()) {
+            OrderedJSONObject o = new OrderedJSONObject();
+            o.put("account", t.account);
+            o.put("type", t.type.name());
+            o.put("requests", t.requests);
+            o.put("failedRequests", t.failed);
+            o.put("records", t.records);
+            o.put("writtenRecords", t.written);
+            o.put("bytes", t.bytes);
+            o.put("latencySeconds", seconds(t.latencyNanos));
+            o.put("maxLatencySeconds", seconds(t.maxLatencyNanos));
+            o.put("parseSeconds", seconds(t.parseNanos));
+            o.put("formatSeconds", seconds(t.formatNanos));
+            o.put("writeSeconds", seconds(t.writeNanos));
+            o.put("recordsPerSecond", perSecond(t.records, t.nanos));
+            types.add(o);
+        }
+        json.put("types", types);
+        JSONArray windows = new JSONArray();
+        for (Request r : requests) {
+            OrderedJSONObject o = new OrderedJSONObject();
+            o.put("account", r.account);
+            o.put("type", r.type.name());
+            o.put("start", r.start);
+            o.put("end", r.end);
+            o.put("records", r.records);
+            o.put("bytes", r.bytes);
+            o.put("latencySeconds", seconds(r.latencyNanos));
+            o.put("parseSeconds", seconds(r.getParseNanos()));
+            o.put("formatSeconds", seconds(r.formatNanos));
+            o.put("writeSeconds", seconds(r.getWriteNanos()));
+            o.put("recordsPerSecond", perSecond(r.records, r.getNanos()));
+            windows.add(o);
+        }
+        json.put("requests", windows);
+        return json;
+    }
+
+    /**
+     * The totals per account and activity type, the windows are left out to keep the
+     * number of series small.
+     */
+    private void writePrometheus (PrintWriter pw, double seconds) {
+        header(pw, "export_start_time_seconds", "gauge", "Start of the export in seconds since the epoch");
+        pw.println(PREFIX + "export_start_time_seconds " + startedMillis / 1000);
+        header(pw, "export_duration_seconds", "gauge", "Duration of the export");
+        pw.println(PREFIX + "export_duration_seconds " + round(seconds));
+        header(pw, "export_days", "gauge", "Days to export, summed over accounts and activity types");
+        pw.println(PREFIX + "export_days " + plannedDays);
+        header(pw, "export_completed_days", "gauge", "Days exported, summed over accounts and activity types");
+        pw.println(PREFIX + "export_completed_days " + completedDays);
+
+        header(pw, "requests_total", "counter", "Completed API requests");
+        for (Totals t : totals.values()) pw.println(series("requests_total", t) + t.requests);
+        header(pw, "failed_requests_total", "counter", "API requests that failed after their retries");
+        for (Totals t : totals.values()) pw.println(series("failed_requests_total", t) + t.failed);
+        header(pw, "records_total", "counter", "Exported records");
+        for (Totals t : totals.values()) pw.println(series("records_total", t) + t.records);
+        header(pw, "written_records_total", "counter", "Records written to the output, without those that were written before");
+        for (Totals t : totals.values()) pw.println(series("written_records_total", t) + t.written);
+        header(pw, "response_bytes_total", "counter", "Bytes of the API responses as received");
+        for (Totals t : totals.values()) pw.println(series("response_bytes_total", t) + t.bytes);
+        header(pw, "request_latency_seconds", "summary", "Time until the response headers arrived");
+        for (Totals t : totals.values()) {
+            pw.println(series("request_latency_seconds_sum", t) + seconds(t.latencyNanos));
+            pw.println(series("request_latency_seconds_count", t) + t.requests);
+        }
+        header(pw, "request_latency_max_seconds", "gauge", "Longest time until the response headers arrived");
+        for (Totals t : totals.values()) pw.println(series("request_latency_max_seconds", t) + seconds(t.maxLatencyNanos));
+        header(pw, "parse_seconds_total", "counter", "Time spent reading and parsing the responses");
+        for (Totals t : totals.values()) pw.println(series("parse_seconds_total", t) + seconds(t.parseNanos));
+        header(pw, "format_seconds_total", "counter", "Time spent converting time stamps");
+        for (Totals t : totals.values()) pw.println(series("format_seconds_total", t) + seconds(t.formatNanos));
+        header(pw, "write_seconds_total", "counter", "Time spent writing records to the output");
+        for (Totals t : totals.values()) pw.println(series("write_seconds_total", t) + seconds(t.writeNanos));
+    }
+
+    private static void header (PrintWriter pw, String name, String type, String help) {
+        pw.println("# HELP " + PREFIX + name + " " + help);
+        pw.println("# TYPE " + PREFIX + name + " " + type);
+    }
+
+    private static String series (String name, Totals t) {
+        return PREFIX + name + "{account=\"" + escape(t.account) + "\",type=\"" + t.type.name() + "\"} ";
+    }
+
+    private static String escape (String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double seconds (long nanos) {
+        return round(nanos / 1e9);
+    }
+
+    private static double perSecond (long count, long nanos) {
+        return nanos == 0 ? 0 : round(count * 1e9 / nanos);
+    }
+
+    private static double round (double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
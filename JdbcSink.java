@@ -0,0 +1,363 @@
+/**
+ * JdbcSink
+ *
+ * Writes the activity records into a database table per activity type, e.g. an embedded H2 or SQLite database.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * One table per activity type, named like its csv file without extension, e.g. views. The
+ * columns are those of the csv header, quoted in the SQL: Time and EndTime are TIMESTAMP,
+ * the others VARCHAR, an open login has no EndTime (NULL). The column Seq numbers the rows
+ * of a table in the order they were written.
+ * <pre>
+ *   SELECT "Space", COUNT(DISTINCT "User") FROM views WHERE "Time" &gt;= '2016-05-01' GROUP BY "Space"
+ * </pre>
+ * The records are inserted by a background thread, in batches of statements with 50 rows each,
+ * the export goes on with the next records meanwhile. There is one transaction per window:
+ * commit() is called when a request is complete and queues the commit behind its inserts
+ * without waiting for it, the export only waits when more than 8 batches are queued. For a
+ * window that is over the commit also records the rows of the table and the size of the csv
+ * file in the table export_state, in the same transaction, like the checkpoint does for the
+ * csv files. An incremental run deletes the rows written after that, an export from scratch
+ * drops the tables. The indexes on Time, User and Space are created by close(), after the
+ * load, which is faster than updating them with every insert.
+ *
+ * As the commits lag behind, the checkpoint of the csv files can be ahead of the database
+ * when the export is stopped. The next incremental run then inserts the records between the
+ * two from the csv file, so the table has the same records as the csv file again.
+ *
+ * The JDBC driver is not part of this program, its jar has to be on the classpath, e.g.
+ * java -cp target/bwluserstats-1.3.jar:h2.jar BwlUserStats ... -db h2
+ */
+public class JdbcSink implements RecordSink {
+
+    public static final String TABLE_STATE = "export_state";
+    private static final int BATCH_ROWS = 2000;
+    private static final int INSERT_ROWS = 50;
+    private static final int MAX_PENDING = 8;
+
+    private final String url;
+    private final Connection connection;
+    private final boolean sqlite;
+    private final Map<ActivityType,Table> tables = new EnumMap<ActivityType,Table>(ActivityType.class);
+    private final ExecutorService writer;
+    private final Deque<Future<?>> pending = new ArrayDeque<Future<?>>();
+
+    /**
+     * The insert statements and row count of one activity type.
+     */
+    private static class Table {
+        final String name;
+        final String[] columns;
+        final PreparedStatement insert;
+        final PreparedStatement insertMany;
+        long rows;
+        String[][] batch = new String[BATCH_ROWS][];
+        int batched;
+
+        Table (String name, String[] columns, PreparedStatement insert, PreparedStatement insertMany) {
+            this.name = name;
+            this.columns = columns;
+            this.insert = insert;
+            this.insertMany = insertMany;
+        }
+    }
+
+    /**
+     * @param url the JDBC URL of the database, e.g. jdbc:h2:/data/userstats/activity
+     */
+    public JdbcSink (String url) throws IOException {
+        this.url = url;
+        try {
+            connection = DriverManager.getConnection(url);
+            connection.setAutoCommit(false);
+            sqlite = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("sqlite");
+            execute("CREATE TABLE IF NOT EXISTS " + TABLE_STATE + " (TableName VARCHAR(100) PRIMARY KEY, CommittedRows BIGINT, CommittedSize BIGINT)");
+            connection.commit();
+        } catch (SQLException e) {
+            // --- DriverManager has no driver for the URL if its jar, or a jar it needs, is missing
+            if ("08001".equals(e.getSQLState())) throw error("Cannot open database " + url + ", is its JDBC driver on the classpath (sqlite-jdbc also needs slf4j-api)?", e);
+            throw error("Cannot open database " + url, e);
+        }
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "JdbcSink");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param type the activity type to write
+     * @param name the name of its table
+     * @param append true to continue after the committed rows, false to start with an empty table
+     * @param csv the csv file of the activity type
+     * @param size the size of the csv file to continue after: its checkpoint, or its header
+     */
+    public void open (ActivityType type, String name, boolean append, File csv, long size) throws IOException {
+        String[] columns = type.header.split(",");
+        try {
+            long committed = -1, committedSize = 0;
+            if (append) {
+                PreparedStatement select = connection.prepareStatement("SELECT CommittedRows, CommittedSize FROM " + TABLE_STATE + " WHERE TableName = ?");
+                try {
+                    select.setString(1, name);
+                    ResultSet rs = select.executeQuery();
+                    if (rs.next()) {
+                        committed = rs.getLong(1);
+                        committedSize = rs.getLong(2);
+                    }
+                    rs.close();
+                } finally {
+                    select.close();
+                }
+            }
+            if (committed >= 0 && committedSize <= size) {
+                // --- rows written after the last closed window are fetched again
+                execute("DELETE FROM " + name + " WHERE \"Seq\" > " + committed);
+            }
+            else {
+                // --- a table that is ahead of the csv file belongs to another export
+                execute("DROP TABLE IF EXISTS " + name);
+                StringBuilder create = new StringBuilder("CREATE TABLE " + name + " (\"Seq\" " + (sqlite ? "INTEGER" : "BIGINT") + " PRIMARY KEY");
+                for (String column : columns) {
+                    create.append(", \"" + column + "\" " + (isTime(column) ? "TIMESTAMP" : "VARCHAR"));
+                }
+                execute(create.append(")").toString());
+                committed = 0;
+                committedSize = size;
+                setCommitted(name, 0, size);
+            }
+            StringBuilder values = new StringBuilder("(?");
+            for (int i = 0; i < columns.length; i++) values.append(", ?");
+            values.append(")");
+            StringBuilder insert = new StringBuilder("INSERT INTO " + name + " (\"Seq\"");
+            for (String column : columns) insert.append(", \"" + column + "\"");
+            insert.append(") VALUES ").append(values);
+            Table table = new Table(name, columns, connection.prepareStatement(insert.toString()),
+                    connection.prepareStatement(insert.append(repeat(", " + values, INSERT_ROWS - 1)).toString()));
+            table.rows = committed;
+            tables.put(type, table);
+            connection.commit();
+            // --- the commits of the last windows did not make it before the export stopped
+            if (committedSize < size) catchUp(type, csv, committedSize, size);
+        } catch (SQLException e) {
+            throw error("Cannot open table " + name, e);
+        }
+    }
+
+    private static String repeat (String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    /**
+     * Insert the records of the csv file between two sizes and commit them, a value in quotes
+     * may span lines.
+     */
+    private void catchUp (ActivityType type, File csv, long from, long to) throws IOException {
+        Table table = tables.get(type);
+        InputStream in = new FileInputStream(csv);
+        try {
+            if (in.skip(from) != from) throw new IOException("Cannot read " + csv.getName() + ", it is shorter than its checkpoint");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new BoundedInputStream(in, to - from)));
+            String record;
+            while ((record = CsvSink.readRecord(reader)) != null) {
+                write(type, CsvSink.split(record, table.columns.length));
+            }
+        } finally {
+            in.close();
+        }
+        commit(type, to);
+        while (!pending.isEmpty()) waitFor(pending.poll());
+    }
+
+    private static boolean isTime (String column) {
+        return column.equals("Time") || column.equals("EndTime");
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        Table table = tables.get(type);
+        table.batch[table.batched++] = values;
+        table.rows++;
+        if (table.batched == BATCH_ROWS) submit(table);
+    }
+
+    /**
+     * End the transaction of a window: queue the rest of the records and the commit, without
+     * waiting for them.
+     *
+     * @param type the activity type
+     * @param size the size of the csv file if the window is over, its rows are recorded as committed
+     * and kept by an incremental run; -1 if it is not
+     */
+    public void commit (ActivityType type, final long size) throws IOException {
+        final Table table = tables.get(type);
+        if (table.batched > 0) submit(table);
+        final long rows = table.rows;
+        queue(() -> {
+            try {
+                if (size >= 0) setCommitted(table.name, rows, size);
+                connection.commit();
+            } catch (SQLException e) {
+                throw error("Cannot commit " + table.name, e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Hand the batch of a table to the writer thread.
+     */
+    private void submit (final Table table) throws IOException {
+        final String[][] batch = table.batch;
+        final int size = table.batched;
+        final long first = table.rows - size + 1;
+        table.batch = new String[BATCH_ROWS][];
+        table.batched = 0;
+        queue(() -> {
+            try {
+                insert(table, batch, size, first);
+            } catch (SQLException e) {
+                throw error("Cannot write " + table.name, e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Hand a task to the writer thread, wait for older ones if too many are pending. A task
+     * that failed fails the next write or commit.
+     */
+    private void queue (Callable<Void> task) throws IOException {
+        pending.add(writer.submit(task));
+        while (pending.size() > MAX_PENDING || !pending.isEmpty() && pending.peek().isDone()) waitFor(pending.poll());
+    }
+
+    private void insert (Table table, String[][] batch, int size, long first) throws SQLException {
+        int row = 0;
+        if (size >= INSERT_ROWS) {
+            PreparedStatement insert = table.insertMany;
+            for (; row + INSERT_ROWS <= size; row += INSERT_ROWS) {
+                for (int i = 0; i < INSERT_ROWS; i++) set(table, insert, i * (table.columns.length + 1), first + row + i, batch[row + i]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        if (row < size) {
+            PreparedStatement insert = table.insert;
+            for (; row < size; row++) {
+                set(table, insert, 0, first + row, batch[row]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static void set (Table table, PreparedStatement insert, int offset, long seq, String[] values) throws SQLException {
+        insert.setLong(offset + 1, seq);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].length() == 0 && isTime(table.columns[i])) insert.setNull(offset + i + 2, Types.TIMESTAMP);
+            else insert.setString(offset + i + 2, values[i]);
+        }
+    }
+
+    private void waitFor (Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing to " + url, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Cannot write to " + url, e.getCause());
+        }
+    }
+
+    /**
+     * Commit the rest, create the indexes and close the database.
+     */
+    public void close () throws IOException {
+        try {
+            try {
+                for (ActivityType type : tables.keySet()) commit(type, -1);
+                while (!pending.isEmpty()) waitFor(pending.poll());
+                for (Table table : tables.values()) {
+                    table.insert.close();
+                    table.insertMany.close();
+                }
+                for (Map.Entry<ActivityType,Table> e : tables.entrySet()) {
+                    String name = e.getValue().name;
+                    execute("CREATE INDEX IF NOT EXISTS " + name + "_time ON " + name + " (\"Time\")");
+                    execute("CREATE INDEX IF NOT EXISTS " + name + "_user ON " + name + " (\"User\")");
+                    if (e.getKey() != ActivityType.LOGINS) execute("CREATE INDEX IF NOT EXISTS " + name + "_space ON " + name + " (\"Space\")");
+                }
+                connection.commit();
+            } finally {
+                writer.shutdown();
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw error("Cannot close database " + url, e);
+        }
+    }
+
+    private void setCommitted (String name, long rows, long size) throws SQLException {
+        PreparedStatement update = connection.prepareStatement("UPDATE " + TABLE_STATE + " SET CommittedRows = ?, CommittedSize = ? WHERE TableName = ?");
+        try {
+            update.setLong(1, rows);
+            update.setLong(2, size);
+            update.setString(3, name);
+            if (update.executeUpdate() > 0) return;
+        } finally {
+            update.close();
+        }
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE_STATE + " (TableName, CommittedRows, CommittedSize) VALUES (?, ?, ?)");
+        try {
+            insert.setString(1, name);
+            insert.setLong(2, rows);
+            insert.setLong(3, size);
+            insert.executeUpdate();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private void execute (String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static IOException error (String message, SQLException e) {
+        return new IOException(message + ": " + e.getMessage(), e);
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * JsonRecordReader
+ *
+ * Streaming reader for the responses of the Blueworks Live API resource "activity".
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.wink.json4j.JSONException;
+
+/**
+ * Walks the "records" array of an activity response one record at a time without building
+ * the document tree. Only the given fields of a record are kept, all other values are skipped
+ * while reading, so memory use does not depend on the size of the response.
+ *
+ * Values are returned the way JSONObject.getString() would return them: strings unescaped,
+ * numbers and booleans as text, nested objects and arrays as their JSON text.
+ */
+public class JsonRecordReader implements RecordCursor {
+
+    private final Reader in;
+    private final Set<String> fields;
+    private final Map<String,String> record = new HashMap<String,String>();
+    private final StringBuilder text = new StringBuilder();
+    private final char[] buf = new char[8192];
+    private int pos = 0;
+    private int len = 0;
+    private boolean inRecords = false;
+    private boolean done = false;
+
+    /**
+     * @param restApiStream InputStream as received from getActivityData ()
+     * @param fields the record fields to keep, all others are skipped
+     */
+    public JsonRecordReader (InputStream restApiStream, Set<String> fields) {
+        this.in = new InputStreamReader(restApiStream, StandardCharsets.UTF_8);
+        this.fields = fields;
+    }
+
+    /**
+     * Move to the next record of the "records" array.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next () throws JSONException {
+        if (done) return false;
+        record.clear();
+        try {
+            if (!inRecords) {
+                findRecords();
+                inRecords = true;
+                if (skipWhitespace() == ']') {
+                    read();
+                    done = true;
+                    return false;
+                }
+            }
+            else {
+                int c = skipWhitespace();
+                read();
+                if (c == ']') {
+                    done = true;
+                    return false;
+                }
+                if (c != ',') throw error("expected ',' or ']' in records array");
+            }
+            readRecord();
+            return true;
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    public boolean has (String key) {
+        return record.containsKey(key);
+    }
+
+    public String getString (String key) throws JSONException {
+        String value = record.get(key);
+        if (value == null) throw new JSONException("The key [" + key + "] was not in the map");
+        return value;
+    }
+
+    /**
+     * Skip the top level object up to the start of the "records" array.
+     */
+    private void findRecords () throws IOException, JSONException {
+        expect('{');
+        while (true) {
+            int c = skipWhitespace();
+            if (c == '}') throw new JSONException("The key [records] was not in the map");
+            if (c == ',') { read(); continue; }
+            String key = readString();
+            expect(':');
+            if (key.equals("records")) {
+                expect('[');
+                return;
+            }
+            skipValue(null);
+        }
+    }
+
+    private void readRecord () throws IOException, JSONException {
+        expect('{');
+        if (skipWhitespace() == '}') { read(); return; }
+        while (true) {
+            String key = readString();
+            expect(':');
+            if (fields.contains(key)) {
+                int c = skipWhitespace();
+                if (c == '"') record.put(key, readString());
+                else if (c == '{' || c == '[') {
+                    StringBuilder raw = new StringBuilder();
+                    skipValue(raw);
+                    record.put(key, raw.toString());
+                }
+                else {
+                    // --- a field that is null is left out, has() is false as for a missing field
+                    String literal = readLiteral();
+                    if (literal != null) record.put(key, literal);
+                }
+            }
+            else skipValue(null);
+            int c = skipWhitespace();
+            read();
+            if (c == '}') return;
+            if (c != ',') throw error("expected ',' or '}' in record");
+            skipWhitespace();
+        }
+    }
+
+    /**
+     * Read a number, true, false or null. Numbers are converted like JSONObject does.
+     */
+    private String readLiteral () throws IOException, JSONException {
+        text.setLength(0);
+        int c;
+        while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            text.append((char) read());
+        }
+        String literal = text.toString();
+        if (literal.equals("null")) return null;
+        if (literal.equals("true") || literal.equals("false")) return literal;
+        try {
+            if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0) {
+                return Double.toString(Double.parseDouble(literal));
+            }
+            return Long.toString(Long.parseLong(literal));
+        } catch (NumberFormatException e) {
+            throw error("invalid value "+literal);
+        }
+    }
+
+    private String readString () throws IOException, JSONException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) throw error("unterminated string");
+            if (c == '"') return text.toString();
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'b': text.append('\b'); break;
+                case 'f': text.append('\f'); break;
+                case 'n': text.append('\n'); break;
+                case 'r': text.append('\r'); break;
+                case 't': text.append('\t'); break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) throw error("invalid unicode escape");
+                        code = code * 16 + digit;
+                    }
+                    text.append((char) code);
+                    break;
+                case -1: throw error("unterminated string");
+                default: text.append((char) c);
+                }
+            }
+            else text.append((char) c);
+        }
+    }
+
+    /**
+     * Skip any value, nested objects and arrays included.
+     *
+     * @param raw receives the JSON text of the value, may be null
+     */
+    private void skipValue (StringBuilder raw) throws IOException, JSONException {
+        int depth = 0;
+        skipWhitespace();
+        do {
+            int c = read();
+            if (c == -1) throw error("unexpected end of input");
+            if (raw != null) raw.append((char) c);
+            if (c == '{' || c == '[') depth++;
+            else if (c == '}' || c == ']') depth--;
+            else if (c == '"') {
+                while ((c = read()) != '"') {
+                    if (c == -1) throw error("unterminated string");
+                    if (raw != null) raw.append((char) c);
+                    if (c == '\\') {
+                        c = read();
+                        if (raw != null) raw.append((char) c);
+                    }
+                }
+                if (raw != null) raw.append('"');
+            }
+            else if (depth == 0) {
+                // number or literal, ends before the next delimiter
+                while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                    read();
+                    if (raw != null) raw.append((char) c);
+                }
+            }
+        } while (depth > 0);
+    }
+
+    private void expect (char expected) throws IOException, JSONException {
+        if (skipWhitespace() != expected) throw error("expected '"+expected+"'");
+        read();
+    }
+
+    private int skipWhitespace () throws IOException {
+        int c;
+        while ((c = peek()) != -1 && Character.isWhitespace(c)) read();
+        return c;
+    }
+
+    private int peek () throws IOException {
+        if (pos == len) {
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+
+    private int read () throws IOException {
+        int c = peek();
+        if (c != -1) pos++;
+        return c;
+    }
+
+    private JSONException error (String message) {
+        return new JSONException("Invalid activity response: "+message);
+    }
+}
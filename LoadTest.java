@@ -0,0 +1,139 @@
+/**
+ * LoadTest
+ *
+ * End-to-end export against the local mock server, with a report of its cost.
+ *
+ * @version 1.3
+ */
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Starts a MockServer in this JVM and runs a complete export against it. The mock options set
+ * the scenario, all other options are passed on to the export, e.g.
+ * <pre>
+ *   BwlUserStats loadtest -records 5000 -latency 200 -errors 5 -s 2015-01-01 -e 2015-12-31 -p 8 -js
+ * </pre>
+ * Reported are the time of the export, the peak heap sampled while it runs, garbage collection
+ * and the requests, failures, records and bytes served by the mock. Heap and time include the
+ * mock, which streams its responses and needs little heap, but shares the CPU with the export
+ * when cores are scarce. Compare scenarios on the same machine. The csv files go to a temporary directory
+ * that is deleted afterwards, unless a directory is given with -d.
+ */
+public class LoadTest {
+
+    private static String USAGE = "Usage: BwlUserStats loadtest [mock_arguments] [export_arguments]\n"
+            + "Mock arguments:\n"
+            + MockServer.OPTIONS
+            + "Export arguments: see BwlUserStats -h, except -server\n"
+            ;
+
+    private static final int SAMPLE_MILLIS = 5;
+
+    public static void main (String[] args) {
+        MockServer mock = new MockServer(0);
+        List<String> exportArgs = new ArrayList<String>(Arrays.asList("tester", "secret", "LoadTest"));
+        boolean hasDir = false;
+        try {
+            for (int i = 0; i < args.length; ) {
+                if (args[i].equals("-h")) printErrorAndExit("");
+                if (i + 1 < args.length && mock.setOption(args[i], args[i + 1])) {
+                    i += 2;
+                    continue;
+                }
+                if (args[i].equals("-d")) hasDir = true;
+                exportArgs.add(args[i++]);
+            }
+        } catch (IllegalArgumentException e) {
+            printErrorAndExit(e.getMessage());
+        }
+
+        File dir = null;
+        HeapSampler sampler = new HeapSampler();
+        try {
+            if (!hasDir) {
+                dir = Files.createTempDirectory("bwluserstats-loadtest").toFile();
+                exportArgs.add("-d");
+                exportArgs.add(dir.getPath());
+            }
+            mock.start();
+            exportArgs.add("-server");
+            exportArgs.add(mock.getUrl());
+
+            System.gc();
+            long gcCount = getGcCount(), gcMillis = getGcMillis();
+            long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            sampler.start();
+            long started = System.nanoTime();
+            BwlUserStats.main(exportArgs.toArray(new String[exportArgs.size()]));
+            double seconds = (System.nanoTime() - started) / 1e9;
+            sampler.interrupt();
+            sampler.join();
+
+            System.out.println("------------------------------------------------------------------------------");
+            System.out.println("Load test: " + String.join(" ", args));
+            System.out.println(String.format(Locale.ROOT, "Export time:      %.2f s", seconds));
+            System.out.println(String.format(Locale.ROOT, "Peak heap:        %d MB (%d MB before the export)", sampler.peak >> 20, heapBefore >> 20));
+            System.out.println(String.format(Locale.ROOT, "GC:               %d collections, %d ms", getGcCount() - gcCount, getGcMillis() - gcMillis));
+            System.out.println(String.format(Locale.ROOT, "Requests:         %d (%d failed)", mock.getRequests(), mock.getFailures()));
+            System.out.println(String.format(Locale.ROOT, "Records:          %d (%.0f per s)", mock.getRecords(), mock.getRecords() / seconds));
+            System.out.println(String.format(Locale.ROOT, "Bytes sent:       %d MB", mock.getBytes() >> 20));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            mock.stop();
+            if (dir != null) FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static long getGcCount () {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long getGcMillis () {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    /**
+     * Samples the used heap until interrupted and keeps the largest value.
+     */
+    private static class HeapSampler extends Thread {
+        volatile long peak;
+
+        HeapSampler () {
+            setDaemon(true);
+        }
+
+        public void run () {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            while (true) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void printErrorAndExit (String message) {
+        if (message.length() > 0) System.err.println("ERROR: "+message);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+}
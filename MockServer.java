@@ -0,0 +1,344 @@
+/**
+ * MockServer
+ *
+ * A local stand-in for the Blueworks Live REST API resource "activity".
+ *
+ * @version 1.3
+ */
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves synthetic records of all activity types at /scr/api/activity, for tests and load tests
+ * without a real account, see LoadTest. Use it with option -server http://127.0.0.1:&lt;port&gt;.
+ *
+ * The records of a day depend only on account, activity type and day, so responses are the same
+ * however the period is split into windows and however often it is requested. Records of today
+ * are served up to the current time only, and logins stay open until their end time, so the
+ * records of today grow like those of a live account between requests. Tunable are the
+ * records per day, the latency of a response, the share of requests failing with 503 or
+ * 429 (with Retry-After) and the share of records with the quirks of real responses:
+ * <ul>
+ * <li>logins without endTime, besides the sessions that are still open</li>
+ * <li>comments with the key "isReply " instead of "isReply"</li>
+ * <li>views without itemType and updates without processName</li>
+ * </ul>
+ * Responses are streamed and gzip compressed if the client accepts it, any user and password
+ * are accepted as long as there is an Authorization header.
+ */
+public class MockServer {
+
+    private static final String PATH = "/scr/api/activity";
+    private static final DateTimeFormatter ISO8601 = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private static final String[] LOGIN_TYPES = {"USER_LOGIN", "SSO", "SESSION_TIMEOUT", "CLIENT_TIMEOUT", "USER"};
+    private static final String[] COMMENT_TYPES = {"PROCESS_COMMENT_ADDED", "PROCESS_ITEM_CHANGED", "DECISION_COMMENT_ADDED", "DECISION_ITEM_CHANGED"};
+    private static final String[] UPDATE_TYPES = {"PROCESS_CREATED", "PROCESS_PROPERTY_CHANGED", "PROCESS_ITEM_CHANGED", "PROCESS_SNAPSHOT_TAKEN", "SPACE_USER_CHANGED"};
+    private static final String[] ACTIVITY_TYPES = {"process", "linked process", "milestone", "activity", "decision"};
+    private static final String[] ITEM_TYPES = {"process", "space", "decision", "policy"};
+
+    /** the options of the mock, also used by LoadTest */
+    static String OPTIONS = ""
+            + "  -records <n>  Average records per day and activity type, default=100\n"
+            + "  -users <n>    Number of distinct users, default=200\n"
+            + "  -latency <ms> Delay before a response is sent, default=0\n"
+            + "  -errors <pct> Percentage of requests that fail with 503 or 429, default=0\n"
+            + "  -quirks <pct> Percentage of records with a quirk of real responses, default=5\n";
+
+    private static String USAGE = "Usage: BwlUserStats mock [optional_arguments]\n"
+            + "Optional arguments:\n"
+            + "  -h            This help message\n"
+            + "  -port <n>     Port to listen on, default=8765\n"
+            + OPTIONS;
+
+    private final int port;
+    private int recordsPerDay = 100;
+    private int users = 200;
+    private int latencyMillis = 0;
+    private int errorPercent = 0;
+    private int quirkPercent = 5;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     */
+    public MockServer (int port) {
+        this.port = port;
+    }
+
+    /**
+     * Run the mock server until the process is stopped.
+     */
+    public static void main (String[] args) {
+        int port = 8765;
+        Map<String,String> options = new HashMap<String,String>();
+        MockServer mock = null;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (args[i].equals("-h")) printUsageAndExit("");
+                if (i + 1 >= args.length) printUsageAndExit("option " + args[i] + " requires a value");
+                if (args[i].equals("-port")) port = parseOption(args[i], args[i + 1]);
+                else options.put(args[i], args[i + 1]);
+            }
+            mock = new MockServer(port);
+            for (Map.Entry<String,String> option : options.entrySet()) {
+                if (!mock.setOption(option.getKey(), option.getValue())) printUsageAndExit("unknown option " + option.getKey());
+            }
+        } catch (IllegalArgumentException e) {
+            printUsageAndExit(e.getMessage());
+        }
+        try {
+            mock.start();
+            System.out.println("Mock server listening on " + mock.getUrl() + PATH);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Set an option of the mock as given on the command line, see OPTIONS.
+     *
+     * @param option the option, e.g. -records
+     * @param value its value
+     * @return false if the option is not an option of the mock
+     */
+    public boolean setOption (String option, String value) {
+        if (option.equals("-records")) recordsPerDay = parseOption(option, value);
+        else if (option.equals("-users")) users = Math.max(1, parseOption(option, value));
+        else if (option.equals("-latency")) latencyMillis = parseOption(option, value);
+        else if (option.equals("-errors")) errorPercent = Math.min(100, parseOption(option, value));
+        else if (option.equals("-quirks")) quirkPercent = Math.min(100, parseOption(option, value));
+        else return false;
+        return true;
+    }
+
+    private static int parseOption (String option, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0) return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("option " + option + " requires a number, 0 or larger");
+    }
+
+    private static void printUsageAndExit (String message) {
+        if (message.length() > 0) System.err.println("ERROR: " + message);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    public void start () throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(PATH, new ActivityHandler());
+        server.start();
+    }
+
+    public void stop () {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to use with option -server
+     */
+    public String getUrl () {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** @return the number of requests received */
+    public long getRequests () { return requests.get(); }
+    /** @return the number of requests answered with an error */
+    public long getFailures () { return failures.get(); }
+    /** @return the number of records sent */
+    public long getRecords () { return records.get(); }
+    /** @return the number of bytes sent, compressed if requested */
+    public long getBytes () { return bytes.get(); }
+
+    private class ActivityHandler implements HttpHandler {
+
+        public void handle (HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                if (latencyMillis > 0) Thread.sleep(latencyMillis);
+
+                Map<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String type = query.get("type");
+                String account = query.get("account");
+                LocalDate day, last;
+                if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+                    sendError(exchange, 401, null);
+                    return;
+                }
+                try {
+                    ActivityType.valueOf(type);
+                    day = LocalDate.parse(query.get("startDate").substring(0, 10));
+                    last = LocalDate.parse(query.get("endDate").substring(0, 10));
+                } catch (RuntimeException e) {
+                    sendError(exchange, 400, null);
+                    return;
+                }
+                if (ThreadLocalRandom.current().nextInt(100) < errorPercent) {
+                    if (ThreadLocalRandom.current().nextBoolean()) sendError(exchange, 503, null);
+                    else sendError(exchange, 429, "1");
+                    return;
+                }
+
+                boolean gzip = String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding")).contains("gzip");
+
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+                OutputStream out = gzip ? new GZIPOutputStream(counter, 65536) : counter;
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+                w.write("{\"account\":\"" + account + "\",\"records\":[");
+                boolean first = true;
+                for (; !day.isAfter(last); day = day.plusDays(1)) {
+                    first = writeDay(w, account, type, day, first);
+                }
+                w.write("]}");
+                w.close();
+                bytes.addAndGet(counter.getByteCount());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * @return false once a record is written, i.e. the next needs a separator
+         */
+        private boolean writeDay (Writer w, String account, String type, LocalDate day, boolean first) throws IOException {
+            Random random = new Random((account + "/" + type + "/" + day).hashCode());
+            int n = recordsPerDay == 0 ? 0 : recordsPerDay / 2 + random.nextInt(recordsPerDay + 1);
+            long dayStart = day.atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+            long now = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder(512);
+            for (int i = 0; i < n; i++) {
+                long millis = dayStart + 86400000L * i / n + random.nextInt(1000);
+                if (millis > now) break;
+                String user = "user" + random.nextInt(users) + "@example.com";
+                String space = "Space " + random.nextInt(Math.max(1, users / 5));
+                String name = "Process " + random.nextInt(users * 10) + " \\\"\u00dcbersicht\\\"";
+                boolean quirk = random.nextInt(100) < quirkPercent;
+
+                sb.setLength(0);
+                sb.append(first ? "{" : ",{");
+                first = false;
+                if (type.equals("LOGINS")) {
+                    field(sb, "message", "User " + user + " logged in");
+                    field(sb, "time", timestamp(millis, random));
+                    if (!quirk && random.nextInt(20) > 0) {
+                        long endMillis = millis + 60000 + random.nextInt(7200000);
+                        String endTime = timestamp(endMillis, random);
+                        if (endMillis <= now) field(sb, "endTime", endTime);
+                    }
+                    field(sb, "type", pick(LOGIN_TYPES, random));
+                }
+                else if (type.equals("COMMENTS")) {
+                    String commentType = pick(COMMENT_TYPES, random);
+                    field(sb, "message", "Comment by " + user);
+                    field(sb, "timeStamp", timestamp(millis, random));
+                    field(sb, "spaceName", space);
+                    field(sb, "spaceId", Long.toHexString(random.nextLong()));
+                    field(sb, "type", commentType);
+                    field(sb, commentType.startsWith("PROCESS") ? "processName" : "decisionDiagramName", name);
+                    if (random.nextInt(10) == 0) field(sb, "subType", "DELETED");
+                    field(sb, "activityType", pick(ACTIVITY_TYPES, random));
+                    field(sb, "activityName", "Activity " + random.nextInt(100));
+                    sb.append(quirk ? "\"isReply \":" : "\"isReply\":").append(random.nextBoolean()).append(',');
+                }
+                else if (type.equals("ITEMS_CHANGED")) {
+                    field(sb, "message", "Item changed by " + user);
+                    field(sb, "timeStamp", timestamp(millis, random));
+                    field(sb, "spaceName", space);
+                    field(sb, "spaceId", Long.toHexString(random.nextLong()));
+                    if (!quirk) field(sb, "processName", name);
+                    field(sb, "type", pick(UPDATE_TYPES, random));
+                }
+                else {
+                    field(sb, "message", "Item viewed by " + user);
+                    field(sb, "itemName", name);
+                    field(sb, "itemId", Long.toHexString(random.nextLong()));
+                    field(sb, "timeStamp", timestamp(millis, random));
+                    field(sb, "spaceName", space);
+                    field(sb, "spaceId", Long.toHexString(random.nextLong()));
+                    if (!quirk) field(sb, "itemType", pick(ITEM_TYPES, random));
+                }
+                sb.append("\"user\":\"").append(user).append("\"}");
+                w.append(sb);
+                records.incrementAndGet();
+            }
+            return first;
+        }
+    }
+
+    private void sendError (HttpExchange exchange, int status, String retryAfter) throws IOException {
+        failures.incrementAndGet();
+        byte[] body = ("{\"error\":" + status + "}").getBytes(StandardCharsets.UTF_8);
+        if (retryAfter != null) exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * @return the time in UTC or in UTC+02:00, as the API uses both
+     */
+    private static String timestamp (long millis, Random random) {
+        ZoneOffset offset = random.nextInt(4) == 0 ? ZoneOffset.UTC : ZoneOffset.ofHours(2);
+        return ISO8601.format(Instant.ofEpochMilli(millis).atOffset(offset));
+    }
+
+    private static String pick (String[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static void field (StringBuilder sb, String name, String value) {
+        sb.append('"').append(name).append("\":\"").append(value).append("\",");
+    }
+
+    private static Map<String,String> parseQuery (String query) throws IOException {
+        Map<String,String> params = new HashMap<String,String>();
+        if (query == null) return params;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * PartitionedSink
+ *
+ * Csv files per activity type and day or month, compressed in the background, with a manifest.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Splits the records of each activity type by the day or month of their time, e.g.
+ * <pre>
+ *   &lt;dir&gt;/views/2016-05.csv.gz    the records of May 2016 with a csv header line, in UTF-8
+ *   &lt;dir&gt;/manifest.csv            one line per partition: Type,File,Rows,Committed,FirstTime,LastTime
+ * </pre>
+ * A partition is written uncompressed to a .csv.part file. Records arrive in chronological
+ * order, so when a commit finds a newer partition, the older ones are complete: they are
+ * sealed and compressed by background threads, the export does not wait for them. close()
+ * seals the rest and waits until all partitions are compressed. Records for a partition that
+ * is already sealed reopen it.
+ *
+ * The manifest is rewritten on every commit. Committed is the number of rows covered by the
+ * checkpoint, rows after it may still change with the next run. An incremental run cuts every
+ * partition back to its committed rows, in line with the csv files, and removes partitions
+ * that were started after the last commit.
+ */
+public class PartitionedSink implements RecordSink {
+
+    public static final String FILE_MANIFEST = "manifest.csv";
+    private static final String SUFFIX = ".csv.gz";
+    private static final String SUFFIX_OPEN = ".csv.part";
+
+    private final File dir;
+    private final int keyLength;
+    private final Map<ActivityType,TypePartitions> types = new EnumMap<ActivityType,TypePartitions>(ActivityType.class);
+    private final ExecutorService compressor;
+
+    /**
+     * @param dir the output directory, one subdirectory per activity type
+     * @param byMonth true to partition by month, false by day
+     */
+    public PartitionedSink (File dir, boolean byMonth) {
+        this.dir = dir;
+        this.keyLength = byMonth ? 7 : 10;
+        this.compressor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "PartitionedSink");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param type the activity type to write
+     * @param name the name of its subdirectory
+     * @param append true to continue after the last commit, false to start without partitions
+     */
+    public void open (ActivityType type, String name, boolean append) throws IOException {
+        File typeDir = new File(dir, name);
+        if (!append && typeDir.exists()) FileUtils.deleteDirectory(typeDir);
+        FileUtils.forceMkdir(typeDir);
+        TypePartitions partitions = new TypePartitions(type, name, typeDir);
+        types.put(type, partitions);
+        if (append) partitions.resume(readManifest(type));
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        types.get(type).write(values);
+    }
+
+    /**
+     * Seal the partitions before the newest one, flush the newest one and record all rows
+     * written so far as committed in the manifest.
+     *
+     * @param type the activity type
+     */
+    public void commit (ActivityType type) throws IOException {
+        TypePartitions partitions = types.get(type);
+        partitions.sealOlder();
+        partitions.commit();
+        writeManifest();
+    }
+
+    /**
+     * Seal all partitions, wait until they are compressed and write the manifest.
+     */
+    public void close () throws IOException {
+        try {
+            for (TypePartitions partitions : types.values()) partitions.sealAll();
+            for (TypePartitions partitions : types.values()) partitions.waitForCompression();
+        } finally {
+            compressor.shutdown();
+        }
+        writeManifest();
+    }
+
+    /**
+     * @return the manifest lines of an activity type, split into their columns
+     */
+    private List<String[]> readManifest (ActivityType type) throws IOException {
+        List<String[]> lines = new ArrayList<String[]>();
+        File file = new File(dir, FILE_MANIFEST);
+        if (!file.exists()) return lines;
+        for (String line : FileUtils.readLines(file, "UTF-8")) {
+            String[] values = line.split(",");
+            if (values.length == 6 && values[0].equals(type.name())) lines.add(values);
+        }
+        return lines;
+    }
+
+    private void writeManifest () throws IOException {
+        File tmp = new File(dir, FILE_MANIFEST + ".tmp");
+        PrintWriter pw = new PrintWriter(tmp, "UTF-8");
+        try {
+            pw.println("Type,File,Rows,Committed,FirstTime,LastTime");
+            for (TypePartitions partitions : types.values()) {
+                for (Partition p : partitions.partitions.values()) {
+                    if (p.rows == 0) continue;
+                    pw.println(partitions.type.name() + "," + partitions.name + "/" + p.key + SUFFIX + "," + p.rows + "," + p.committed + "," + p.first + "," + p.last);
+                }
+            }
+        } finally {
+            pw.close();
+        }
+        if (pw.checkError()) throw new IOException("Error writing " + FILE_MANIFEST);
+        Files.move(tmp.toPath(), new File(dir, FILE_MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * One day or month of an activity type.
+     */
+    private static class Partition {
+        final String key;
+        long rows;
+        long committed;
+        String first = "";
+        String last = "";
+        PrintWriter writer;
+        Future<?> compression;
+
+        Partition (String key) {
+            this.key = key;
+        }
+
+        void add (String time) {
+            if (rows == 0 || time.compareTo(first) < 0) first = time;
+            if (rows == 0 || time.compareTo(last) > 0) last = time;
+            rows++;
+        }
+    }
+
+    /**
+     * The partitions of one activity type, ordered by their key.
+     */
+    private class TypePartitions {
+        final ActivityType type;
+        final String name;
+        final File dir;
+        final TreeMap<String,Partition> partitions = new TreeMap<String,Partition>();
+        Partition current;
+
+        TypePartitions (ActivityType type, String name, File dir) {
+            this.type = type;
+            this.name = name;
+            this.dir = dir;
+        }
+
+        void write (String[] values) throws IOException {
+            String key = values[0].substring(0, keyLength);
+            if (current == null || !current.key.equals(key)) {
+                current = partitions.get(key);
+                if (current == null) {
+                    current = new Partition(key);
+                    partitions.put(key, current);
+                }
+                if (current.writer == null) reopen(current);
+            }
+            PrintWriter pw = current.writer;
+            pw.print(values[0]);
+            for (int i = 1; i < values.length; i++) {
+                pw.print(',');
+                pw.print(CsvSink.escape(values[i]));
+            }
+            pw.println();
+            current.add(values[0]);
+        }
+
+        /**
+         * Open the .csv.part file of a partition for appending, restored from the compressed
+         * file if the partition was sealed.
+         */
+        void reopen (Partition p) throws IOException {
+            waitFor(p);
+            File part = new File(dir, p.key + SUFFIX_OPEN);
+            File gz = new File(dir, p.key + SUFFIX);
+            if (gz.exists()) {
+                copyRows(new GZIPInputStream(new FileInputStream(gz)), part, p);
+                FileUtils.forceDelete(gz);
+            }
+            boolean header = !part.exists();
+            p.writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part, true), StandardCharsets.UTF_8)));
+            if (header) p.writer.println(type.header);
+        }
+
+        /**
+         * Continue with the committed rows of the manifest, everything else is removed.
+         */
+        void resume (List<String[]> manifest) throws IOException {
+            for (String[] values : manifest) {
+                String key = values[1].substring(values[1].lastIndexOf('/') + 1, values[1].length() - SUFFIX.length());
+                long rows = Long.parseLong(values[2]);
+                long committed = Long.parseLong(values[3]);
+                if (committed == 0) continue;
+                Partition p = new Partition(key);
+                p.rows = rows;
+                p.committed = committed;
+                p.first = values[4];
+                p.last = values[5];
+                partitions.put(key, p);
+                File part = new File(dir, key + SUFFIX_OPEN);
+                File gz = new File(dir, key + SUFFIX);
+                if (committed < rows || !gz.exists()) {
+                    // --- cut back to the committed rows and compress again
+                    p.rows = committed;
+                    File tmp = new File(dir, key + ".csv.tmp");
+                    InputStream in = gz.exists() ? new GZIPInputStream(new FileInputStream(gz)) : new FileInputStream(part);
+                    copyRows(in, tmp, p);
+                    Files.move(tmp.toPath(), part.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    FileUtils.deleteQuietly(gz);
+                    seal(p);
+                }
+            }
+            File[] files = dir.listFiles();
+            if (files == null) throw new IOException("Cannot list " + dir);
+            for (File file : files) {
+                String fileName = file.getName();
+                int dot = fileName.indexOf('.');
+                Partition p = dot < 0 ? null : partitions.get(fileName.substring(0, dot));
+                if (p == null || (p.compression == null && !fileName.endsWith(SUFFIX))) FileUtils.forceDelete(file);
+            }
+        }
+
+        /**
+         * Copy the header and the first rows of a partition, and take the time bounds of the copied
+         * rows. A row is a record, a value in quotes may span lines.
+         */
+        void copyRows (InputStream in, File file, Partition p) throws IOException {
+            long rows = p.rows;
+            p.rows = 0;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+            try {
+                pw.println(reader.readLine());
+                String record;
+                while (p.rows < rows && (record = CsvSink.readRecord(reader)) != null) {
+                    pw.println(record);
+                    int comma = record.indexOf(',');
+                    p.add(comma < 0 ? record : record.substring(0, comma));
+                }
+            } finally {
+                pw.close();
+                reader.close();
+            }
+            if (pw.checkError()) throw new IOException("Error writing " + file);
+        }
+
+        void commit () throws IOException {
+            for (Partition p : partitions.values()) {
+                if (p.writer != null) {
+                    p.writer.flush();
+                    if (p.writer.checkError()) throw new IOException("Error writing " + name + "/" + p.key + SUFFIX_OPEN);
+                }
+                p.committed = p.rows;
+            }
+        }
+
+        void sealOlder () throws IOException {
+            if (partitions.isEmpty()) return;
+            for (Partition p : partitions.headMap(partitions.lastKey()).values()) seal(p);
+        }
+
+        void sealAll () throws IOException {
+            for (Partition p : partitions.values()) seal(p);
+        }
+
+        /**
+         * Close the .csv.part file of an open partition and compress it in the background.
+         */
+        void seal (Partition p) throws IOException {
+            if (p.writer != null) {
+                p.writer.close();
+                if (p.writer.checkError()) throw new IOException("Error writing " + name + "/" + p.key + SUFFIX_OPEN);
+                p.writer = null;
+            }
+            else if (p.compression != null || !new File(dir, p.key + SUFFIX_OPEN).exists()) {
+                return;
+            }
+            if (p == current) current = null;
+            final File part = new File(dir, p.key + SUFFIX_OPEN);
+            final File gz = new File(dir, p.key + SUFFIX);
+            p.compression = compressor.submit(() -> {
+                File tmp = new File(gz.getPath() + ".tmp");
+                InputStream in = new FileInputStream(part);
+                try {
+                    OutputStream out = new GZIPOutputStream(FileUtils.openOutputStream(tmp), 65536);
+                    try {
+                        IOUtils.copy(in, out);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FileUtils.forceDelete(part);
+                return null;
+            });
+        }
+
+        void waitForCompression () throws IOException {
+            for (Partition p : partitions.values()) waitFor(p);
+        }
+
+        private void waitFor (Partition p) throws IOException {
+            if (p.compression == null) return;
+            try {
+                p.compression.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while compressing " + name + "/" + p.key + SUFFIX, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error compressing " + name + "/" + p.key + SUFFIX, e.getCause());
+            } finally {
+                p.compression = null;
+            }
+        }
+    }
+}
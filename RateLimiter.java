@@ -0,0 +1,60 @@
+/**
+ * RateLimiter
+ *
+ * Spaces out the API requests of all worker threads.
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Hands out evenly spaced time slots for requests, shared by all threads that call the API.
+ * A pause, e.g. because the server asked to retry later, holds back every thread, not only
+ * the one that received the answer.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private long next = System.nanoTime();
+
+    /**
+     * @param requestsPerMinute the largest number of requests per minute, 0 for no limit
+     */
+    public RateLimiter (int requestsPerMinute) {
+        this.intervalNanos = requestsPerMinute > 0 ? 60000000000L / requestsPerMinute : 0;
+    }
+
+    /**
+     * Wait for the next free slot.
+     */
+    public void acquire () throws IOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, next);
+            next = slot + intervalNanos;
+            wait = slot - now;
+        }
+        sleep(wait / 1000000);
+    }
+
+    /**
+     * Hand out no slot before the given time has passed.
+     *
+     * @param millis the pause from now on
+     */
+    public synchronized void pause (long millis) {
+        next = Math.max(next, System.nanoTime() + millis * 1000000);
+    }
+
+    static void sleep (long millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to call the API");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * RecordCursor
+ *
+ * Access to the records of a response of the Blueworks Live API resource "activity".
+ *
+ * @version 1.3
+ */
+import org.apache.wink.json4j.JSONException;
+
+/**
+ * Iterates over the "records" array of an activity response. The field accessors refer to
+ * the current record and behave like the ones of JSONObject.
+ */
+public interface RecordCursor {
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there are no more records
+     */
+    boolean next () throws JSONException;
+
+    /**
+     * @param key the field name
+     * @return true if the current record contains the field, a field that is null counts as missing
+     */
+    boolean has (String key);
+
+    /**
+     * @param key the field name
+     * @return the value of the field in the current record
+     * @throws JSONException if the field is missing or null
+     */
+    String getString (String key) throws JSONException;
+}
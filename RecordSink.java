@@ -0,0 +1,26 @@
+/**
+ * RecordSink
+ *
+ * Destination for the activity records of an export.
+ *
+ * @version 1.3
+ */
+import java.io.IOException;
+
+/**
+ * Receives the activity records of an export. The records of each activity type arrive
+ * in chronological order, always from one thread at a time.
+ */
+public interface RecordSink {
+
+    /**
+     * @param type the activity type of the record
+     * @param values the record values in the order of the csv columns, see ActivityType.header
+     */
+    void write (ActivityType type, String[] values) throws IOException;
+
+    /**
+     * Called once after the last record of the export.
+     */
+    void close () throws IOException;
+}
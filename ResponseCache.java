@@ -0,0 +1,181 @@
+/**
+ * ResponseCache
+ *
+ * Local copy of the raw responses of the Blueworks Live API resource "activity".
+ *
+ * @version 1.3
+ */
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Responses are stored gzip compressed, one file per account, activity type and time window:
+ * <pre>
+ *   &lt;dir&gt;/&lt;account&gt;/&lt;type&gt;/&lt;start&gt;_&lt;end&gt;.json.gz        window was over when cached, kept forever
+ *   &lt;dir&gt;/&lt;account&gt;/&lt;type&gt;/&lt;start&gt;_&lt;end&gt;.open.json.gz   window was still open, valid for the ttl
+ * </pre>
+ * A response is copied into the cache while it is read and the entry only becomes visible
+ * once the response has been read completely.
+ */
+public class ResponseCache {
+
+    private final File dir;
+    private final long ttl;
+
+    /**
+     * @param dir the cache directory
+     * @param ttl how long responses of open windows are valid, in milliseconds
+     */
+    public ResponseCache (File dir, long ttl) {
+        this.dir = dir;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Look up a cached response.
+     *
+     * @param account the Blueworks Live account name
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @param start first day of the window as yyyy-MM-dd
+     * @param end last day of the window as yyyy-MM-dd
+     * @param closed true if the window is over, only responses cached after that are used
+     * @param offline true to accept any cached response, expired or not
+     * @return the response or null if it is not cached
+     */
+    public InputStream get (String account, String type, String start, String end, boolean closed, boolean offline) throws IOException {
+        File file = getFile(account, type, start, end, true);
+        if (!file.exists() && (offline || !closed)) {
+            file = getFile(account, type, start, end, false);
+            if (!offline && file.lastModified() + ttl < System.currentTimeMillis()) return null;
+        }
+        if (!file.exists()) return null;
+        return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Find a cached window that begins at the given day, so a run can reuse it instead of
+     * planning a different window.
+     *
+     * @param account the Blueworks Live account name
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @param start first day of the window as yyyy-MM-dd
+     * @param offline true to accept windows that were still open when cached
+     * @return the last day of the cached window as yyyy-MM-dd or null if there is none
+     */
+    public String findEnd (String account, String type, String start, boolean offline) {
+        String[] names = getFile(account, type, start, start, true).getParentFile().list();
+        String found = null;
+        if (names == null) return null;
+        for (String name : names) {
+            if (!name.startsWith(start + "_")) continue;
+            int dot = name.indexOf('.');
+            if (name.endsWith(".open.json.gz")) {
+                if (offline && found == null) found = name.substring(start.length() + 1, dot);
+            }
+            else if (name.endsWith(".json.gz")) {
+                return name.substring(start.length() + 1, dot);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copy a response into the cache while it is read.
+     *
+     * @param account the Blueworks Live account name
+     * @param type activity type such as LOGINS, COMMENTS, ...
+     * @param start first day of the window as yyyy-MM-dd
+     * @param end last day of the window as yyyy-MM-dd
+     * @param closed true if the window is over
+     * @param response the response as received from the API
+     * @return a stream to read the response from instead
+     */
+    public InputStream store (String account, String type, String start, String end, boolean closed, InputStream response) throws IOException {
+        File file = getFile(account, type, start, end, closed);
+        FileUtils.forceMkdir(file.getParentFile());
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        return new CachingInputStream(response, tmp, file);
+    }
+
+    private File getFile (String account, String type, String start, String end, boolean closed) {
+        String name = start + "_" + end + (closed ? ".json.gz" : ".open.json.gz");
+        return new File(new File(new File(dir, account.replaceAll("[^A-Za-z0-9._-]", "_")), type), name);
+    }
+
+    /**
+     * Writes everything that is read to a temporary file, which replaces the cache entry
+     * once the end of the response is reached.
+     */
+    private static class CachingInputStream extends FilterInputStream {
+        private final File tmp;
+        private final File file;
+        private final OutputStream cacheOut;
+        private boolean eof = false;
+
+        CachingInputStream (InputStream in, File tmp, File file) throws IOException {
+            super(in);
+            this.tmp = tmp;
+            this.file = file;
+            this.cacheOut = new GZIPOutputStream(new FileOutputStream(tmp), 65536);
+        }
+
+        @Override
+        public int read () throws IOException {
+            int b = super.read();
+            if (b == -1) eof = true;
+            else cacheOut.write(b);
+            return b;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) eof = true;
+            else cacheOut.write(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip (long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 8192)];
+            int read = read(b, 0, b.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported () {
+            return false;
+        }
+
+        /**
+         * Read the rest of the response first, a streaming reader stops at the end of the records.
+         */
+        @Override
+        public void close () throws IOException {
+            try {
+                byte[] b = new byte[8192];
+                while (!eof) read(b, 0, b.length);
+            } finally {
+                try {
+                    super.close();
+                    cacheOut.close();
+                    if (eof) Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    if (tmp.exists()) tmp.delete();
+                }
+            }
+        }
+    }
+}
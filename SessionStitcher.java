@@ -0,0 +1,299 @@
+/**
+ * SessionStitcher
+ *
+ * Login sessions merged across time windows and runs, with the concurrent users per hour.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Keeps one session per user and start time. A login that is reported again, e.g. by the
+ * next window or the next run, is merged into the session it belongs to, and an end time
+ * that arrives later closes a session that was still open. When the export is closed the
+ * sessions are written as
+ * <pre>
+ *   sessions.csv         one line per session, open sessions have an empty end time
+ *   summary_hours.csv    logins, and the largest number of concurrent sessions and users per hour
+ * </pre>
+ * Sessions are stored in primitive arrays with an open addressing index, about 40 bytes per
+ * session, user names and login types are dictionary encoded. A session lasts from its start
+ * up to, not including, its end; sessions without an end time count at their start only.
+ *
+ * An incremental run continues with the sessions of the previous run. The checkpoint tells
+ * whether sessions.csv covers the logins kept in logins.txt; after an export that stopped
+ * without writing it, the sessions are rebuilt from logins.txt instead.
+ */
+public class SessionStitcher implements RecordSink {
+
+    public static final String FILE_SESSIONS = "sessions.csv";
+    public static final String FILE_HOURS = "summary_hours.csv";
+
+    /** checkpoint entry with the logins end and size that sessions.csv covers */
+    private static final String CHECKPOINT_KEY = "SESSIONS";
+
+    private static final long OPEN = Long.MIN_VALUE;
+    private static final ZoneRules ZONE_RULES = ZoneId.systemDefault().getRules();
+
+    private final File dir;
+    private final Checkpoint checkpoint;
+    private final String loginsFile;
+
+    private final StringDictionary users = new StringDictionary();
+    private final StringDictionary types = new StringDictionary();
+
+    // --- per session, indexed by session id
+    private int[] user = new int[1024];
+    private int[] type = new int[1024];
+    private long[] start = new long[1024];
+    private long[] end = new long[1024];
+    private int size;
+
+    // --- session id + 1 by hash of user and start, 0 is a free slot
+    private int[] slots = new int[2048];
+    private int merged;
+
+    /**
+     * @param dir the directory of the csv files
+     * @param checkpoint the checkpoint of the export
+     * @param loginsFile the name of the csv file with the logins
+     */
+    public SessionStitcher (File dir, Checkpoint checkpoint, String loginsFile) {
+        this.dir = dir;
+        this.checkpoint = checkpoint;
+        this.loginsFile = loginsFile;
+    }
+
+    /**
+     * Continue with the sessions of the previous run, read from sessions.csv if it covers the
+     * checkpointed logins, or else rebuilt from the checkpointed part of logins.txt.
+     */
+    public void resume () throws IOException {
+        String loginsEnd = checkpoint.getEnd(ActivityType.LOGINS.name());
+        long loginsSize = checkpoint.getSize(ActivityType.LOGINS.name());
+        File sessions = new File(dir, FILE_SESSIONS);
+        if (sessions.exists() && loginsEnd != null && loginsEnd.equals(checkpoint.getEnd(CHECKPOINT_KEY))
+                && loginsSize == checkpoint.getSize(CHECKPOINT_KEY)) {
+            read(sessions, Long.MAX_VALUE, 5);
+        }
+        else if (loginsSize > 0) {
+            read(new File(dir, loginsFile), loginsSize, 4);
+        }
+    }
+
+    /**
+     * Read the sessions of a csv file with a header line, either sessions.csv or logins.txt.
+     *
+     * @param file the csv file
+     * @param limit the number of bytes to read
+     * @param columns the number of columns, the user is the last one
+     */
+    private void read (File file, long limit, int columns) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new BoundedInputStream(new FileInputStream(file), limit)));
+        try {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = CsvSink.split(line, columns);
+                if (values.length < columns) continue;
+                add(values[0], values[1], values[columns - 2], values[columns - 1]);
+            }
+        } catch (ParseException e) {
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void write (ActivityType type, String[] values) throws IOException {
+        if (type != ActivityType.LOGINS) return;
+        try {
+            add(values[0], values[1], values[2], values[3]);
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void add (String startTime, String endTime, String loginType, String userName) throws ParseException {
+        long s = TimestampConverter.toEpochSecond(startTime);
+        long e = endTime.length() == 0 ? OPEN : TimestampConverter.toEpochSecond(endTime);
+        int u = users.encode(userName);
+        int slot = find(u, s);
+        if (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (e != OPEN && (end[id] == OPEN || e > end[id])) end[id] = e;
+            merged++;
+            return;
+        }
+        if (size == start.length) {
+            int capacity = size * 2;
+            user = Arrays.copyOf(user, capacity);
+            type = Arrays.copyOf(type, capacity);
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+        }
+        user[size] = u;
+        type[size] = types.encode(loginType);
+        start[size] = s;
+        end[size] = e;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) rehash();
+    }
+
+    /**
+     * @return the slot of the session, or the free slot to put it into
+     */
+    private int find (int u, long s) {
+        int mask = slots.length - 1;
+        int slot = hash(u, s) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (user[id] == u && start[id] == s) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash () {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(user[id], start[id]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int hash (int u, long s) {
+        long h = (s * 31 + u) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the number of sessions
+     */
+    public int getSessions () {
+        return size;
+    }
+
+    /**
+     * @return the number of logins that were merged into a session reported before
+     */
+    public int getMerged () {
+        return merged;
+    }
+
+    /**
+     * Write sessions.csv and summary_hours.csv, then record in the checkpoint which logins
+     * they cover.
+     */
+    public void close () throws IOException {
+        long first = Long.MAX_VALUE;
+        for (int id = 0; id < size; id++) first = Math.min(first, start[id]);
+
+        // --- sessions by start time, ties in the order they were added
+        long[] order = new long[size];
+        for (int id = 0; id < size; id++) order[id] = (start[id] - first) << 32 | id;
+        Arrays.sort(order);
+        File tmp = new File(dir, FILE_SESSIONS + ".tmp");
+        PrintWriter pw = new PrintWriter(tmp);
+        try {
+            pw.println("StartTime,EndTime,Minutes,Type,User");
+            for (long key : order) {
+                int id = (int) key;
+                boolean open = end[id] == OPEN;
+                pw.println(TimestampConverter.toCsv(start[id]) + "," + (open ? "" : TimestampConverter.toCsv(end[id])) + ","
+                        + (open ? "" : Long.toString((end[id] - start[id]) / 60)) + "," + CsvSink.escape(types.decode(type[id])) + "," + CsvSink.escape(users.decode(user[id])));
+            }
+        } finally {
+            pw.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, FILE_SESSIONS).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        pw = new PrintWriter(new File(dir, FILE_HOURS));
+        try {
+            pw.println("Hour,Logins,PeakSessions,PeakUsers");
+            if (size > 0) writeHours(pw, first);
+        } finally {
+            pw.close();
+        }
+
+        String loginsEnd = checkpoint.getEnd(ActivityType.LOGINS.name());
+        if (loginsEnd != null) checkpoint.update(CHECKPOINT_KEY, loginsEnd, checkpoint.getSize(ActivityType.LOGINS.name()));
+        else checkpoint.remove(CHECKPOINT_KEY);
+    }
+
+    /**
+     * Sweep over the starts and ends of all sessions in time order, ends before starts at the
+     * same second, and keep the largest number of open sessions and users per local hour.
+     * Hours without any start or end carry the numbers of the hour before.
+     *
+     * @param pw the writer of summary_hours.csv
+     * @param first the earliest start of a session
+     */
+    private void writeHours (PrintWriter pw, long first) {
+        // --- an event is seconds since first << 32 | start bit << 31 | user
+        long[] events = new long[size * 2];
+        for (int id = 0; id < size; id++) {
+            long e = end[id] == OPEN ? start[id] + 1 : Math.max(end[id], start[id] + 1);
+            events[2 * id] = (start[id] - first) << 32 | 1L << 31 | user[id];
+            events[2 * id + 1] = (e - first) << 32 | user[id];
+        }
+        Arrays.sort(events);
+
+        int[] userSessions = new int[users.size()];
+        int sessions = 0, activeUsers = 0;
+        long hour = hourOf(first), nextHour = hour + 3600;
+        int logins = 0, peakSessions = 0, peakUsers = 0;
+        for (long event : events) {
+            long time = (event >>> 32) + first;
+            while (time >= nextHour) {
+                pw.println(formatHour(hour) + "," + logins + "," + peakSessions + "," + peakUsers);
+                hour = nextHour;
+                nextHour = hour + 3600;
+                logins = 0;
+                peakSessions = sessions;
+                peakUsers = activeUsers;
+            }
+            int u = (int) (event & 0x7FFFFFFF);
+            if ((event & 1L << 31) != 0) {
+                logins++;
+                sessions++;
+                if (userSessions[u]++ == 0) activeUsers++;
+                peakSessions = Math.max(peakSessions, sessions);
+                peakUsers = Math.max(peakUsers, activeUsers);
+            }
+            else {
+                sessions--;
+                if (--userSessions[u] == 0) activeUsers--;
+            }
+        }
+        pw.println(formatHour(hour) + "," + logins + "," + peakSessions + "," + peakUsers);
+    }
+
+    /**
+     * @return the start of the local hour of the time, in seconds since the epoch
+     */
+    private static long hourOf (long epochSecond) {
+        int offset = ZONE_RULES.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+        return epochSecond - Math.floorMod(epochSecond + offset, 3600);
+    }
+
+    private static String formatHour (long epochSecond) {
+        return TimestampConverter.toCsv(epochSecond).substring(0, 13) + ":00";
+    }
+}
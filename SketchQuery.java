@@ -0,0 +1,149 @@
+/**
+ * SketchQuery
+ *
+ * Counts distinct users over a range of days from the sketches written by UserSketches.
+ *
+ * @version 1.3
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the sketches of the requested days, activity types and space or type and prints
+ * the estimated number of distinct users as csv, for the whole range or per day, week or
+ * month. Only the files of the months in the range are read, a year takes a few milliseconds.
+ */
+public class SketchQuery {
+
+    private static String USAGE = "Usage: BwlUserStats distinct <path> [optional_arguments]\n"
+            + "  <path>      Directory of the sketches, e.g. <csv directory>/sketches\n"
+            + "Optional arguments:\n"
+            + "  -h          This help message\n"
+            + "  -t <types>  Activity types LOGINS, COMMENTS, ITEMS_CHANGED or ITEMS_VIEWED, separated by commas, default=all\n"
+            + "  -s <date>   Start date (YYYY-MM-DD)\n"
+            + "  -e <date>   End date\n"
+            + "  -space <s>  Space name, users of records in this space only\n"
+            + "  -type <t>   Value of the Type column, e.g. the item type of views, users of these records only\n"
+            + "  -by <p>     One line per \"day\", \"week\" or \"month\", default=one line for the range\n"
+            ;
+
+    private final File dir;
+    private final List<ActivityType> types = new ArrayList<ActivityType>();
+    private String from = "0000-00-00";
+    private String to = "9999-99-99";
+    private String space = null;
+    private String kind = null;
+    private String by = null;
+
+    /**
+     * @param dir the directory of the sketches
+     */
+    public SketchQuery (File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Run a query from the command line, the arguments following "distinct".
+     */
+    public static void main (String[] args) {
+        int i = 1;
+        if (args.length < 1) printErrorAndExit("missing path of the sketches");
+        if (args[0].equals("-h")) printErrorAndExit("");
+        SketchQuery query = new SketchQuery(new File(args[0]));
+        try {
+            while (i < args.length) {
+                String arg = args[i++];
+                if (i >= args.length) printErrorAndExit("option " + arg + " requires a value");
+                if (arg.equals("-t")) {
+                    for (String type : args[i++].split(",")) query.types.add(ActivityType.valueOf(type.trim()));
+                }
+                else if (arg.equals("-s")) query.from = LocalDate.parse(args[i++]).toString();
+                else if (arg.equals("-e")) query.to = LocalDate.parse(args[i++]).toString();
+                else if (arg.equals("-space")) query.space = args[i++];
+                else if (arg.equals("-type")) query.kind = args[i++];
+                else if (arg.equals("-by")) {
+                    query.by = args[i++];
+                    if (!query.by.equals("day") && !query.by.equals("week") && !query.by.equals("month")) printErrorAndExit("option -by requires day, week or month");
+                }
+                else printErrorAndExit("unknown command line option " + arg);
+            }
+        } catch (DateTimeParseException e) {
+            printErrorAndExit("could not parse given start or end date");
+        } catch (IllegalArgumentException e) {
+            printErrorAndExit("unknown activity type");
+        }
+        if (query.space != null && query.kind != null) printErrorAndExit("options -space and -type cannot be combined");
+
+        try {
+            long started = System.nanoTime();
+            int lines = query.run(System.out);
+            System.err.println(lines + " lines in " + (System.nanoTime() - started) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print the distinct users per period as csv, including the header.
+     *
+     * @param out the stream to print to
+     * @return the number of periods printed
+     */
+    public int run (PrintStream out) throws IOException {
+        TreeMap<String,HyperLogLog> periods = new TreeMap<String,HyperLogLog>();
+        String fromMonth = from.substring(0, 7);
+        String toMonth = to.substring(0, 7);
+        for (ActivityType type : types.isEmpty() ? Arrays.asList(ActivityType.values()) : types) {
+            String[] names = new File(dir, type.name()).list();
+            if (names == null) continue;
+            for (String name : names) {
+                if (!name.endsWith(".hll")) continue;
+                String month = name.substring(0, name.length() - 4);
+                if (month.compareTo(fromMonth) < 0 || month.compareTo(toMonth) > 0) continue;
+                TreeMap<String,UserSketches.DaySketches> days = UserSketches.read(new File(new File(dir, type.name()), name), space, kind);
+                for (Map.Entry<String,UserSketches.DaySketches> e : days.subMap(from, true, to, true).entrySet()) {
+                    HyperLogLog sketch = space != null ? e.getValue().spaces.get(space)
+                            : kind != null ? e.getValue().kinds.get(kind) : e.getValue().all;
+                    if (sketch != null) UserSketches.DaySketches.get(periods, getPeriod(e.getKey())).merge(sketch);
+                }
+            }
+        }
+        out.println((by == null ? "Start,End" : "Period") + ",Users");
+        if (by == null) {
+            HyperLogLog all = periods.isEmpty() ? new HyperLogLog() : periods.firstEntry().getValue();
+            out.println((from.startsWith("0000") ? "" : from) + "," + (to.startsWith("9999") ? "" : to) + "," + all.estimate());
+            return 1;
+        }
+        for (Map.Entry<String,HyperLogLog> e : periods.entrySet()) out.println(e.getKey() + "," + e.getValue().estimate());
+        return periods.size();
+    }
+
+    /**
+     * @param day the day as yyyy-MM-dd
+     * @return the period of the day, e.g. 2016-05-17, 2016-W20 or 2016-05
+     */
+    private String getPeriod (String day) {
+        if (by == null) return "";
+        if (by.equals("day")) return day;
+        if (by.equals("month")) return day.substring(0, 7);
+        LocalDate date = LocalDate.parse(day);
+        return String.format(Locale.ROOT, "%d-W%02d", date.get(IsoFields.WEEK_BASED_YEAR), date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+    }
+
+    private static void printErrorAndExit (String message) {
+        if (message.length() > 0) System.err.println("ERROR: "+message);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * StringDictionary
+ *
+ * Dictionary encoding of repeated strings such as user names and spaces.
+ *
+ * @version 1.3
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns consecutive ids, starting at 0, to distinct strings. Each distinct string is stored
+ * once, so memory depends on the number of distinct values, not on how often they occur.
+ */
+public class StringDictionary {
+
+    private final Map<String,Integer> ids = new HashMap<String,Integer>();
+    private final List<String> values = new ArrayList<String>();
+
+    /**
+     * @param value the string to encode
+     * @return the id of the string, a new one if it was not seen before
+     */
+    public int encode (String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    /**
+     * @param value the string to look up
+     * @return the id of the string or -1 if it is unknown
+     */
+    public int find (String value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id an id returned by encode()
+     * @return the string
+     */
+    public String decode (int id) {
+        return values.get(id);
+    }
+
+    /**
+     * @return the number of distinct strings
+     */
+    public int size () {
+        return values.size();
+    }
+
+    /**
+     * @return the ids ordered by their strings
+     */
+    public Integer[] sortedIds () {
+        Integer[] sorted = new Integer[values.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = i;
+        Arrays.sort(sorted, (a, b) -> values.get(a).compareTo(values.get(b)));
+        return sorted;
+    }
+}
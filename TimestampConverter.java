@@ -0,0 +1,229 @@
+/**
+ * TimestampConverter
+ *
+ * Conversion of the API time stamps to the time format of the csv files.
+ *
+ * @version 1.3
+ */
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Converts ISO-8601 time stamps as returned by the API, e.g. 2016-05-10T14:03:27.123+02:00,
+ * to local time in the csv format yyyy-MM-dd HH:mm:ss. The result is the same as parsing with
+ * SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX") and formatting with
+ * SimpleDateFormat("yyyy-MM-dd HH:mm:ss") in the default time zone.
+ *
+ * The usual form is converted by plain arithmetic, allocating nothing but the result string.
+ * Time stamps that do not match it exactly go through SimpleDateFormat, so odd input behaves
+ * as before. All methods are thread-safe.
+ */
+public final class TimestampConverter {
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_ISO8601 =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX"));
+    private static final ThreadLocal<SimpleDateFormat> DATE_CSVFORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+
+    private static final ZoneRules ZONE_RULES = ZoneId.systemDefault().getRules();
+
+    /**
+     * The UTC offset of the default time zone between two transitions, cached because
+     * consecutive records almost always fall into the same period.
+     */
+    private static volatile OffsetPeriod offsetPeriod = new OffsetPeriod(0, 0, 0);
+
+    private TimestampConverter () {
+    }
+
+    /**
+     * @param timestamp time stamp as returned by the API
+     * @return local time as yyyy-MM-dd HH:mm:ss
+     * @throws ParseException if the time stamp cannot be parsed
+     */
+    public static String toCsv (String timestamp) throws ParseException {
+        long epochSecond = parseEpochSecond(timestamp);
+        if (epochSecond == Long.MIN_VALUE) {
+            return DATE_CSVFORMAT.get().format(DATE_ISO8601.get().parse(timestamp));
+        }
+        return formatLocal(epochSecond + getOffset(epochSecond));
+    }
+
+    /**
+     * @param epochSecond seconds since the epoch
+     * @return local time as yyyy-MM-dd HH:mm:ss
+     */
+    public static String toCsv (long epochSecond) {
+        return formatLocal(epochSecond + getOffset(epochSecond));
+    }
+
+    /**
+     * Convert a local time of the csv output back to a point in time, e.g. to compute durations.
+     * Times in the hour that repeats when daylight saving time ends are ambiguous, one of both is returned.
+     *
+     * @param csvTime local time as yyyy-MM-dd HH:mm:ss
+     * @return seconds since the epoch
+     * @throws ParseException if the time has a different form
+     */
+    public static long toEpochSecond (String csvTime) throws ParseException {
+        if (csvTime.length() != 19 || csvTime.charAt(4) != '-' || csvTime.charAt(7) != '-' || csvTime.charAt(10) != ' '
+                || csvTime.charAt(13) != ':' || csvTime.charAt(16) != ':') {
+            throw new ParseException("Unparseable date: \"" + csvTime + "\"", 0);
+        }
+        int year = digits(csvTime, 0, 4);
+        int month = digits(csvTime, 5, 2);
+        int day = digits(csvTime, 8, 2);
+        int hour = digits(csvTime, 11, 2);
+        int minute = digits(csvTime, 14, 2);
+        int second = digits(csvTime, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || minute < 0 || second < 0) {
+            throw new ParseException("Unparseable date: \"" + csvTime + "\"", 0);
+        }
+        long localSecond = epochDay(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+        long epochSecond = localSecond - getOffset(localSecond);
+        return localSecond - getOffset(epochSecond);
+    }
+
+    /**
+     * Parse yyyy-MM-ddTHH:mm:ss.S[S[S]] followed by Z or +hh:mm / -hh:mm.
+     *
+     * @return seconds since the epoch, Long.MIN_VALUE if the time stamp has a different form
+     */
+    private static long parseEpochSecond (String s) {
+        int len = s.length();
+        if (len < 22 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(19) != '.') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year < 1900 || year > 9998 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+
+        // --- milliseconds, up to three digits, do not change the seconds
+        int pos = 20;
+        while (pos < len && pos < 23 && Character.isDigit(s.charAt(pos))) pos++;
+        if (pos == 20 || pos == len) return Long.MIN_VALUE;
+
+        int offset;
+        char sign = s.charAt(pos);
+        if (sign == 'Z' && pos + 1 == len) {
+            offset = 0;
+        }
+        else if ((sign == '+' || sign == '-') && pos + 6 == len && s.charAt(pos + 3) == ':') {
+            int offsetHours = digits(s, pos + 1, 2);
+            int offsetMinutes = digits(s, pos + 4, 2);
+            if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) return Long.MIN_VALUE;
+            offset = (offsetHours * 3600 + offsetMinutes * 60) * (sign == '-' ? -1 : 1);
+        }
+        else {
+            return Long.MIN_VALUE;
+        }
+        return epochDay(year, month, day) * 86400L + hour * 3600 + minute * 60 + second - offset;
+    }
+
+    private static int getOffset (long epochSecond) {
+        OffsetPeriod period = offsetPeriod;
+        if (epochSecond < period.from || epochSecond >= period.to) {
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            // --- previousTransition() is strictly before its argument, a transition at this very second starts the period
+            ZoneOffsetTransition previous = ZONE_RULES.previousTransition(instant.plusSeconds(1));
+            ZoneOffsetTransition next = ZONE_RULES.nextTransition(instant);
+            period = new OffsetPeriod(
+                    previous == null ? Long.MIN_VALUE : previous.toEpochSecond(),
+                    next == null ? Long.MAX_VALUE : next.toEpochSecond(),
+                    ZONE_RULES.getOffset(instant).getTotalSeconds());
+            offsetPeriod = period;
+        }
+        return period.offset;
+    }
+
+    private static String formatLocal (long localSecond) {
+        long epochDay = Math.floorDiv(localSecond, 86400L);
+        int secondOfDay = (int) Math.floorMod(localSecond, 86400L);
+
+        // --- civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] c = new char[19];
+        put(c, 0, (int) year, 4);
+        c[4] = '-';
+        put(c, 5, month, 2);
+        c[7] = '-';
+        put(c, 8, day, 2);
+        c[10] = ' ';
+        put(c, 11, secondOfDay / 3600, 2);
+        c[13] = ':';
+        put(c, 14, secondOfDay / 60 % 60, 2);
+        c[16] = ':';
+        put(c, 17, secondOfDay % 60, 2);
+        return new String(c);
+    }
+
+    private static long epochDay (int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        int yoe = (int) (y - era * 400);
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int daysInMonth (int year, int month) {
+        switch (month) {
+        case 2: return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        case 4: case 6: case 9: case 11: return 30;
+        default: return 31;
+        }
+    }
+
+    /**
+     * @return the value of n decimal digits at the given position, -1 if there is a non-digit
+     */
+    private static int digits (String s, int pos, int n) {
+        int value = 0;
+        for (int i = pos; i < pos + n; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') return -1;
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static void put (char[] c, int pos, int value, int n) {
+        for (int i = pos + n - 1; i >= pos; i--) {
+            c[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static final class OffsetPeriod {
+        final long from;
+        final long to;
+        final int offset;
+
+        OffsetPeriod (long from, long to, int offset) {
+            this.from = from;
+            this.to = to;
+            this.offset = offset;
+        }
+    }
+}
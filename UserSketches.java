@@ -0,0 +1,221 @@
+/**
+ * UserSketches
+ *
+ * Distinct users per day and space and per day and type, as HyperLogLog sketches.
+ *
+ * @version 1.3
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Adds the user of every record to three sketches of its activity type and day: all users,
+ * the users of its space and the users of its value in the Type column, e.g. the item type
+ * of a view. Logins have no space. When the export is closed the sketches are merged into
+ * one binary file per activity type and month:
+ * <pre>
+ *   &lt;dir&gt;/ITEMS_VIEWED/2016-05.hll    the sketches of the days of May 2016
+ * </pre>
+ * Merging takes the union, so records that are exported again, by an incremental run, a
+ * poll or a run over an overlapping period, do not count twice. Delete the directory to
+ * start over. SketchQuery answers the number of distinct users for any range of days.
+ */
+public class UserSketches implements RecordSink {
+
+    private static final int MAGIC = 0x484C4C31;
+
+    private final File dir;
+    private final Map<ActivityType,TreeMap<String,DaySketches>> types = new EnumMap<ActivityType,TreeMap<String,DaySketches>>(ActivityType.class);
+
+    // --- the sketches of the last record, the next one is most likely of the same type and day
+    private ActivityType lastType;
+    private String lastDay;
+    private DaySketches last;
+
+    /**
+     * The sketches of one activity type and day.
+     */
+    static class DaySketches {
+        HyperLogLog all = new HyperLogLog();
+        final Map<String,HyperLogLog> spaces = new HashMap<String,HyperLogLog>();
+        final Map<String,HyperLogLog> kinds = new HashMap<String,HyperLogLog>();
+
+        void merge (DaySketches other) {
+            all.merge(other.all);
+            merge(spaces, other.spaces);
+            merge(kinds, other.kinds);
+        }
+
+        private static void merge (Map<String,HyperLogLog> sketches, Map<String,HyperLogLog> others) {
+            for (Map.Entry<String,HyperLogLog> e : others.entrySet()) get(sketches, e.getKey()).merge(e.getValue());
+        }
+
+        static HyperLogLog get (Map<String,HyperLogLog> sketches, String key) {
+            HyperLogLog sketch = sketches.get(key);
+            if (sketch == null) {
+                sketch = new HyperLogLog();
+                sketches.put(key, sketch);
+            }
+            return sketch;
+        }
+    }
+
+    /**
+     * @param dir the directory of the sketch files
+     */
+    public UserSketches (File dir) {
+        this.dir = dir;
+    }
+
+    public void write (ActivityType type, String[] values) {
+        String day = values[0].substring(0, 10);
+        if (type != lastType || !day.equals(lastDay)) {
+            TreeMap<String,DaySketches> days = types.get(type);
+            if (days == null) {
+                days = new TreeMap<String,DaySketches>();
+                types.put(type, days);
+            }
+            last = days.get(day);
+            if (last == null) {
+                last = new DaySketches();
+                days.put(day, last);
+            }
+            lastType = type;
+            lastDay = day;
+        }
+        long hash = HyperLogLog.hash(values[type.userColumn()]);
+        last.all.addHash(hash);
+        String space = type == ActivityType.LOGINS ? "" : values[1];
+        if (space.length() > 0) DaySketches.get(last.spaces, space).addHash(hash);
+        String kind = values[getTypeColumn(type)];
+        if (kind.length() > 0) DaySketches.get(last.kinds, kind).addHash(hash);
+    }
+
+    /**
+     * @return the index of the Type column
+     */
+    static int getTypeColumn (ActivityType type) {
+        return type == ActivityType.LOGINS ? 2 : 3;
+    }
+
+    /**
+     * Merge the sketches into the files of their months and start with empty ones, e.g.
+     * after a poll.
+     */
+    public void flush () throws IOException {
+        for (Map.Entry<ActivityType,TreeMap<String,DaySketches>> e : types.entrySet()) {
+            File typeDir = new File(dir, e.getKey().name());
+            FileUtils.forceMkdir(typeDir);
+            TreeMap<String,DaySketches> days = e.getValue();
+            while (!days.isEmpty()) {
+                String month = days.firstKey().substring(0, 7);
+                Map<String,DaySketches> monthDays = days.subMap(month, month + "-99");
+                File file = new File(typeDir, month + ".hll");
+                TreeMap<String,DaySketches> merged = read(file);
+                for (Map.Entry<String,DaySketches> day : monthDays.entrySet()) {
+                    DaySketches sketches = merged.get(day.getKey());
+                    if (sketches == null) merged.put(day.getKey(), day.getValue());
+                    else sketches.merge(day.getValue());
+                }
+                write(file, merged);
+                monthDays.clear();
+            }
+        }
+        types.clear();
+        last = null;
+        lastType = null;
+    }
+
+    public void close () throws IOException {
+        flush();
+    }
+
+    /**
+     * @param file the file of one activity type and month
+     * @return its sketches by day, empty if the file does not exist
+     */
+    static TreeMap<String,DaySketches> read (File file) throws IOException {
+        return read(file, null, null, true);
+    }
+
+    /**
+     * Read the sketches of all users and the sketches of one space or type, the others are skipped.
+     *
+     * @param file the file of one activity type and month
+     * @param space the space to read the sketches of, or null
+     * @param kind the value of the Type column to read the sketches of, or null
+     * @return the sketches by day, empty if the file does not exist
+     */
+    static TreeMap<String,DaySketches> read (File file, String space, String kind) throws IOException {
+        return read(file, space, kind, false);
+    }
+
+    private static TreeMap<String,DaySketches> read (File file, String space, String kind, boolean everything) throws IOException {
+        TreeMap<String,DaySketches> days = new TreeMap<String,DaySketches>();
+        if (!file.exists()) return days;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a sketch file: " + file);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                DaySketches sketches = new DaySketches();
+                days.put(in.readUTF(), sketches);
+                sketches.all = HyperLogLog.read(in);
+                readMap(in, sketches.spaces, space, everything);
+                readMap(in, sketches.kinds, kind, everything);
+            }
+        } finally {
+            in.close();
+        }
+        return days;
+    }
+
+    private static void readMap (DataInputStream in, Map<String,HyperLogLog> sketches, String only, boolean everything) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            if (everything || key.equals(only)) sketches.put(key, HyperLogLog.read(in));
+            else HyperLogLog.skip(in);
+        }
+    }
+
+    private static void write (File file, TreeMap<String,DaySketches> days) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(days.size());
+            for (Map.Entry<String,DaySketches> e : days.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().all.write(out);
+                writeMap(out, e.getValue().spaces);
+                writeMap(out, e.getValue().kinds);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeMap (DataOutputStream out, Map<String,HyperLogLog> sketches) throws IOException {
+        out.writeInt(sketches.size());
+        for (Map.Entry<String,HyperLogLog> e : new TreeMap<String,HyperLogLog>(sketches).entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * WindowPlanner
+ *
+ * Splits the requested period into the time windows of the API calls for one activity type.
+ *
+ * @version 1.3
+ */
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Hands out consecutive time windows from the start to the end day. With a fixed size every
+ * window has the same number of days. Adaptive planning estimates the response size per day
+ * from the responses received so far: dense periods are split into smaller windows so that
+ * a response stays below the target size, sparse periods are covered by growing windows.
+ * Until the first response is recorded there is no estimate, so an adaptive planner hands out
+ * only its first window, and parallel requests do not fetch several windows of a guessed size.
+ */
+public class WindowPlanner {
+
+    private final Date end;
+    private final boolean adaptive;
+    private final int minDays;
+    private final int maxDays;
+    private final long targetBytes;
+    private Date next;
+    private int days;
+    private Date split;
+    // --- adaptive: a response was recorded / the first window is handed out, its response is not recorded yet
+    private boolean measured;
+    private boolean probing;
+
+    /**
+     * Plan windows of a fixed size.
+     *
+     * @param start the first day
+     * @param end the last day
+     * @param days the number of days of a window
+     */
+    public WindowPlanner (Date start, Date end, int days) {
+        this(start, end, days, days, days, 0, false);
+    }
+
+    /**
+     * Plan windows that adapt to the size of the responses.
+     *
+     * @param start the first day
+     * @param end the last day
+     * @param days the number of days of the first window
+     * @param minDays the smallest window
+     * @param maxDays the largest window
+     * @param targetBytes the largest response size to aim for
+     */
+    public WindowPlanner (Date start, Date end, int days, int minDays, int maxDays, long targetBytes) {
+        this(start, end, days, minDays, maxDays, targetBytes, true);
+    }
+
+    private WindowPlanner (Date start, Date end, int days, int minDays, int maxDays, long targetBytes, boolean adaptive) {
+        this.next = start;
+        this.end = end;
+        this.minDays = minDays;
+        this.maxDays = maxDays;
+        this.targetBytes = targetBytes;
+        this.adaptive = adaptive;
+        this.days = Math.max(minDays, Math.min(maxDays, days));
+    }
+
+    /**
+     * End the window that contains the given day with that day, e.g. the last day that is over,
+     * so the days up to it are complete in their windows while the following ones are still open.
+     *
+     * @param day the last day of a window, or null
+     */
+    public void splitAfter (Date day) {
+        this.split = day;
+    }
+
+    /**
+     * @return true if there are days left to request
+     */
+    public boolean hasNext () {
+        return !probing && next.compareTo(end) <= 0;
+    }
+
+    /**
+     * @return the first day of the next window
+     */
+    public Date peek () {
+        return next;
+    }
+
+    /**
+     * Take the next window.
+     *
+     * @param knownEnd last day of a window that is already available for the next start day,
+     *                 e.g. from the response cache, used instead of planning a new one if it
+     *                 does not go beyond the end day; may be null
+     * @return first and last day of the window
+     */
+    public Date[] next (Date knownEnd) {
+        Date start = next;
+        Date last = knownEnd != null && knownEnd.compareTo(end) <= 0 ? knownEnd : addDays(start, days - 1);
+        if (last.compareTo(end) > 0) last = end;
+        if (split != null && start.compareTo(split) <= 0 && last.compareTo(split) > 0) last = split;
+        if (adaptive && !measured) probing = true;
+        next = addDays(last, 1);
+        return new Date[] {start, last};
+    }
+
+    /**
+     * Adjust the window size to a received response.
+     *
+     * @param start first day of the window
+     * @param last last day of the window
+     * @param records number of records in the response
+     * @param bytes size of the response
+     */
+    public void record (Date start, Date last, int records, long bytes) {
+        if (!adaptive) return;
+        measured = true;
+        probing = false;
+        int windowDays = daysBetween(start, last) + 1;
+        long size;
+        if (records == 0 || bytes == 0) {
+            // --- sparse, grow but not more than doubling per response
+            size = (long) windowDays * 2;
+        }
+        else {
+            double bytesPerDay = (double) bytes / windowDays;
+            size = (long) Math.floor(targetBytes / bytesPerDay);
+            size = Math.min(size, (long) windowDays * 2);
+        }
+        days = (int) Math.max(minDays, Math.min(maxDays, size));
+    }
+
+    /**
+     * @return the number of days the next planned window will have
+     */
+    public int getDays () {
+        return days;
+    }
+
+    private static Date addDays (Date date, int n) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        cal.add(Calendar.DATE, n);
+        return cal.getTime();
+    }
+
+    private static int daysBetween (Date from, Date to) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(from);
+        int n = 0;
+        while (cal.getTime().compareTo(to) < 0) {
+            cal.add(Calendar.DATE, 1);
+            n++;
+        }
+        return n;
+    }
+}
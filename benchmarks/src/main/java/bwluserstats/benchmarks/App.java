@@ -0,0 +1,158 @@
+package bwluserstats.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the BwlUserStats classes. They are in the default package, which cannot be
+ * imported, and the processing methods are private, so they are looked up once by reflection
+ * and called through method handles held in static final fields, which the JIT compiles
+ * like direct calls.
+ */
+final class App {
+
+    static final Class<?> ACTIVITY_TYPE = load("ActivityType");
+    static final Class<?> RECORD_SINK = load("RecordSink");
+
+    /** (ActivityType, InputStream, RecordSink) -> int, BwlUserStats.processData */
+    private static final MethodHandle PROCESS_DATA = method(load("BwlUserStats"), "processData",
+            ACTIVITY_TYPE, InputStream.class, RECORD_SINK)
+            .asType(MethodType.methodType(int.class, Object.class, InputStream.class, Object.class));
+
+    /** (String) -> String, TimestampConverter.toCsv */
+    private static final MethodHandle TO_CSV = method(load("TimestampConverter"), "toCsv", String.class);
+
+    /** (RecordSink, ActivityType, String[]) -> void, RecordSink.write */
+    private static final MethodHandle WRITE = method(RECORD_SINK, "write", ACTIVITY_TYPE, String[].class)
+            .asType(MethodType.methodType(void.class, Object.class, Object.class, String[].class));
+
+    private App () {
+    }
+
+    static Object activityType (String name) {
+        for (Object type : ACTIVITY_TYPE.getEnumConstants()) {
+            if (((Enum<?>) type).name().equals(name)) return type;
+        }
+        throw new IllegalArgumentException("unknown activity type " + name);
+    }
+
+    /**
+     * @param streaming true for the streaming parser (option -js), false for wink-json4j
+     */
+    static void setStreaming (boolean streaming) throws ReflectiveOperationException {
+        Field field = load("BwlUserStats").getDeclaredField("JSON_STREAMING");
+        field.setAccessible(true);
+        field.setBoolean(null, streaming);
+    }
+
+    static int processData (Object type, InputStream in, Object sink) throws Throwable {
+        return (int) PROCESS_DATA.invokeExact(type, in, sink);
+    }
+
+    static String toCsv (String timestamp) throws Throwable {
+        return (String) TO_CSV.invokeExact(timestamp);
+    }
+
+    static void write (Object sink, Object type, String[] values) throws Throwable {
+        WRITE.invokeExact(sink, type, values);
+    }
+
+    /**
+     * @return a sink that drops all records, to measure parsing alone
+     */
+    static Object newNullSink () throws ReflectiveOperationException {
+        return load("CompositeSink").getConstructor().newInstance();
+    }
+
+    /**
+     * @return a CsvSink for all activity types that encodes and buffers like the csv files do,
+     *         but discards the bytes instead of writing them to disk
+     */
+    static Object newCsvSink () throws ReflectiveOperationException {
+        Class<?> csvSink = load("CsvSink");
+        Object sink = csvSink.getConstructor().newInstance();
+        Method open = csvSink.getMethod("open", ACTIVITY_TYPE, PrintWriter.class);
+        for (Object type : ACTIVITY_TYPE.getEnumConstants()) {
+            open.invoke(sink, type, new PrintWriter(new BufferedWriter(new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8))));
+        }
+        return sink;
+    }
+
+    /**
+     * @param url the JDBC URL of the database, its driver on the classpath of the benchmarks
+     * @return a JdbcSink with a new table per activity type
+     */
+    static Object newJdbcSink (String url) throws ReflectiveOperationException {
+        Class<?> jdbcSink = load("JdbcSink");
+        Object sink = jdbcSink.getConstructor(String.class).newInstance(url);
+        Method open = jdbcSink.getMethod("open", ACTIVITY_TYPE, String.class, boolean.class, File.class, long.class);
+        for (Object type : ACTIVITY_TYPE.getEnumConstants()) {
+            open.invoke(sink, type, ((Enum<?>) type).name().toLowerCase(), false, null, 0L);
+        }
+        return sink;
+    }
+
+    /**
+     * JdbcSink.commit of a window that is over, without a csv file.
+     */
+    static void commit (Object jdbcSink, Object type) throws ReflectiveOperationException {
+        jdbcSink.getClass().getMethod("commit", ACTIVITY_TYPE, long.class).invoke(jdbcSink, type, 0L);
+    }
+
+    /**
+     * @return the converted values of the records of a synthetic response, as a RecordSink receives them
+     */
+    static String[][] records (String type, int records) throws Throwable {
+        final List<String[]> captured = new ArrayList<String[]>(records);
+        Object capture = Proxy.newProxyInstance(RECORD_SINK.getClassLoader(), new Class<?>[] {RECORD_SINK},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("write")) captured.add((String[]) args[1]);
+                    return null;
+                });
+        setStreaming(true);
+        processData(activityType(type), new ByteArrayInputStream(Payloads.generate(type, records)), capture);
+        return captured.toArray(new String[records][]);
+    }
+
+    private static Class<?> load (String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method (Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write (int b) {
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) {
+        }
+    }
+}
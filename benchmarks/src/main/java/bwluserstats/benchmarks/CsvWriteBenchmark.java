@@ -0,0 +1,51 @@
+package bwluserstats.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing csv lines of an activity type, per record, without parsing. The records are the
+ * converted values of a synthetic response, captured once in the setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvWriteBenchmark {
+
+    private static final int N = 10000;
+
+    @Param({"LOGINS", "COMMENTS", "ITEMS_CHANGED", "ITEMS_VIEWED"})
+    public String type;
+
+    private Object activityType;
+    private String[][] values;
+    private Object sink;
+
+    @Setup
+    public void setUp () throws Throwable {
+        activityType = App.activityType(type);
+        values = App.records(type, N);
+        sink = App.newCsvSink();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void write () throws Throwable {
+        for (String[] record : values) App.write(sink, activityType, record);
+    }
+}
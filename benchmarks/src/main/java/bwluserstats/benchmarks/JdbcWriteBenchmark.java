@@ -0,0 +1,71 @@
+package bwluserstats.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the records of an activity type into an embedded database, per record, like
+ * CsvWriteBenchmark. Every invocation is one window: the records are inserted in batches
+ * and committed. Both are queued for the writer thread, which sets the pace once the queue
+ * is full, so this is the throughput of the database. The indexes are created when the sink
+ * is closed after the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JdbcWriteBenchmark {
+
+    private static final int N = 10000;
+
+    @Param({"LOGINS", "COMMENTS", "ITEMS_CHANGED", "ITEMS_VIEWED"})
+    public String type;
+
+    @Param({"h2", "sqlite"})
+    public String db;
+
+    private Object activityType;
+    private String[][] values;
+    private File dir;
+    private Object sink;
+
+    @Setup
+    public void setUp () throws Throwable {
+        activityType = App.activityType(type);
+        values = App.records(type, N);
+        dir = Files.createTempDirectory("jdbc-benchmark").toFile();
+        sink = App.newJdbcSink(db.equals("h2") ? "jdbc:h2:" + new File(dir, "activity").getAbsolutePath()
+                : "jdbc:sqlite:" + new File(dir, "activity.db").getAbsolutePath());
+    }
+
+    @TearDown
+    public void tearDown () throws Exception {
+        sink.getClass().getMethod("close").invoke(sink);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void write () throws Throwable {
+        for (String[] record : values) App.write(sink, activityType, record);
+        App.commit(sink, activityType);
+    }
+}
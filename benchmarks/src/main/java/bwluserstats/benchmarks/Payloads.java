@@ -0,0 +1,126 @@
+package bwluserstats.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Synthetic responses of the API resource "activity", shaped like real ones: the fields the
+ * export reads plus the ones it ignores (message, ids), a few hundred users and dozens of
+ * spaces, and time stamps spread in order over a window of 21 days.
+ */
+final class Payloads {
+
+    private static final long WINDOW_START = Instant.parse("2016-05-02T00:00:00Z").getEpochSecond();
+    private static final long WINDOW_SECONDS = 21 * 86400L;
+    private static final DateTimeFormatter ISO = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private static final String[] LOGIN_TYPES = {"USER_LOGIN", "SSO", "SESSION_TIMEOUT", "CLIENT_TIMEOUT", "USER"};
+    private static final String[] COMMENT_TYPES = {"PROCESS_COMMENT_ADDED", "PROCESS_ITEM_CHANGED", "DECISION_COMMENT_ADDED"};
+    private static final String[] UPDATE_TYPES = {"PROCESS_CREATED", "PROCESS_PROPERTY_CHANGED", "PROCESS_ITEM_CHANGED", "PROCESS_SNAPSHOT_TAKEN", "SPACE_USER_CHANGED"};
+    private static final String[] ITEM_TYPES = {"process", "decision", "space", "policy"};
+    private static final String[] ACTIVITY_TYPES = {"process", "linked process", "milestone", "activity"};
+
+    private Payloads () {
+    }
+
+    /**
+     * @param type the activity type name, e.g. LOGINS
+     * @param records the number of records
+     * @return the response body as UTF-8
+     */
+    static byte[] generate (String type, int records) {
+        Random random = new Random(records * 31L + type.hashCode());
+        String[] times = timestamps(records, random);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(records * 360 + 64);
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"account\":\"Benchmark\",\"records\":[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) sb.append(',');
+            String user = "user" + random.nextInt(500) + "@example.com";
+            String space = "Space " + random.nextInt(40);
+            String process = "Process \\\"" + random.nextInt(2000) + "\\\" äöü";
+            sb.append('{');
+            switch (type) {
+            case "LOGINS":
+                field(sb, "message", "User " + user + " logged in").append(',');
+                field(sb, "time", times[i]).append(',');
+                if (random.nextInt(10) > 0) {
+                    Instant end = Instant.from(ISO.parse(times[i])).plusSeconds(60 + random.nextInt(7200));
+                    field(sb, "endTime", ISO.format(end.atOffset(ZoneOffset.UTC))).append(',');
+                }
+                field(sb, "type", LOGIN_TYPES[random.nextInt(LOGIN_TYPES.length)]).append(',');
+                field(sb, "user", user);
+                break;
+            case "COMMENTS":
+                field(sb, "message", "Comment added by " + user).append(',');
+                field(sb, "timeStamp", times[i]).append(',');
+                field(sb, "spaceName", space).append(',');
+                field(sb, "spaceId", Long.toHexString(random.nextLong())).append(',');
+                field(sb, "type", COMMENT_TYPES[random.nextInt(COMMENT_TYPES.length)]).append(',');
+                field(sb, "processName", process).append(',');
+                field(sb, "decisionDiagramName", process).append(',');
+                field(sb, "activityType", ACTIVITY_TYPES[random.nextInt(ACTIVITY_TYPES.length)]).append(',');
+                field(sb, "activityName", "Activity " + random.nextInt(100)).append(',');
+                field(sb, "user", user).append(',');
+                sb.append("\"isReply\":").append(random.nextBoolean()).append(',');
+                sb.append("\"comment\":{\"id\":").append(random.nextInt(1000000)).append(",\"length\":").append(random.nextInt(500)).append('}');
+                break;
+            case "ITEMS_CHANGED":
+                field(sb, "message", "Item changed by " + user).append(',');
+                field(sb, "timeStamp", times[i]).append(',');
+                field(sb, "spaceName", space).append(',');
+                field(sb, "spaceId", Long.toHexString(random.nextLong())).append(',');
+                field(sb, "processName", process).append(',');
+                field(sb, "processId", Long.toHexString(random.nextLong())).append(',');
+                field(sb, "type", UPDATE_TYPES[random.nextInt(UPDATE_TYPES.length)]).append(',');
+                field(sb, "user", user);
+                break;
+            case "ITEMS_VIEWED":
+                field(sb, "message", "Item viewed by " + user).append(',');
+                field(sb, "itemName", process).append(',');
+                field(sb, "itemId", Long.toHexString(random.nextLong())).append(',');
+                field(sb, "timeStamp", times[i]).append(',');
+                field(sb, "spaceName", space).append(',');
+                field(sb, "spaceId", Long.toHexString(random.nextLong())).append(',');
+                field(sb, "itemType", ITEM_TYPES[random.nextInt(ITEM_TYPES.length)]).append(',');
+                field(sb, "user", user);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown activity type " + type);
+            }
+            sb.append('}');
+            write(out, sb);
+        }
+        sb.append("]}");
+        write(out, sb);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param n the number of time stamps
+     * @return ISO-8601 time stamps in ascending order, as the API returns them
+     */
+    static String[] timestamps (int n, Random random) {
+        String[] times = new String[n];
+        for (int i = 0; i < n; i++) {
+            long millis = (WINDOW_START + WINDOW_SECONDS * i / n) * 1000 + random.nextInt(1000);
+            ZoneOffset offset = random.nextInt(4) == 0 ? ZoneOffset.UTC : ZoneOffset.ofHours(2);
+            times[i] = ISO.format(Instant.ofEpochMilli(millis).atOffset(offset));
+        }
+        return times;
+    }
+
+    private static void write (ByteArrayOutputStream out, StringBuilder sb) {
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        sb.setLength(0);
+    }
+
+    private static StringBuilder field (StringBuilder sb, String name, String value) {
+        return sb.append('"').append(name).append("\":\"").append(value).append('"');
+    }
+}
@@ -0,0 +1,74 @@
+package bwluserstats.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One API response of an activity type, processed as by an export: parsed with the DOM or the
+ * streaming parser, time stamps converted, and either dropped (output=none, parsing and
+ * conversion only) or written as csv lines to a discarding writer (output=csv).
+ *
+ * The records and bytes counters report records/s and bytes/s of the response,
+ * run with -prof gc for the allocation rate per record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ProcessBenchmark {
+
+    @Param({"LOGINS", "COMMENTS", "ITEMS_CHANGED", "ITEMS_VIEWED"})
+    public String type;
+
+    @Param({"10000", "100000", "1000000"})
+    public int records;
+
+    @Param({"dom", "streaming"})
+    public String parser;
+
+    @Param({"none", "csv"})
+    public String output;
+
+    private byte[] payload;
+    private Object activityType;
+    private Object sink;
+
+    @Setup(Level.Trial)
+    public void setUp () throws ReflectiveOperationException {
+        payload = Payloads.generate(type, records);
+        activityType = App.activityType(type);
+        App.setStreaming(parser.equals("streaming"));
+        sink = output.equals("csv") ? App.newCsvSink() : App.newNullSink();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long records;
+        public long bytes;
+    }
+
+    @Benchmark
+    public int process (Counters counters) throws Throwable {
+        int count = App.processData(activityType, new ByteArrayInputStream(payload), sink);
+        counters.records += count;
+        counters.bytes += payload.length;
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+package bwluserstats.benchmarks;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Conversion of API time stamps to the csv time format, per time stamp. The SimpleDateFormat
+ * variant is the conversion used before TimestampConverter, for comparison. The setup fails
+ * if both give different results, run it with -jvmArgs -Duser.timezone=Europe/Berlin or any
+ * other zone to check that zone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TimestampBenchmark {
+
+    private static final int N = 10000;
+
+    private String[] timestamps;
+    private SimpleDateFormat isoFormat;
+    private SimpleDateFormat csvFormat;
+
+    @Setup
+    public void setUp () throws Throwable {
+        timestamps = Payloads.timestamps(N, new Random(42));
+        isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        csvFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        check();
+    }
+
+    /**
+     * Compare TimestampConverter with SimpleDateFormat for the benchmark time stamps and around
+     * the transitions of the default time zone from 2015 to 2017. The second of a transition is
+     * converted first, then the seconds and days before it, which must not reuse its offset.
+     */
+    private void check () throws Throwable {
+        List<String> samples = new ArrayList<String>(Arrays.asList(timestamps));
+        ZoneRules rules = ZoneId.systemDefault().getRules();
+        Instant until = Instant.parse("2018-01-01T00:00:00Z");
+        ZoneOffsetTransition transition = rules.nextTransition(Instant.parse("2015-01-01T00:00:00Z"));
+        while (transition != null && transition.getInstant().isBefore(until)) {
+            for (long seconds : new long[] {0, -1, -7 * 86400, 1, -3600, 3600}) {
+                samples.add(transition.getInstant().plusSeconds(seconds).toString().replace("Z", ".000Z"));
+            }
+            transition = rules.nextTransition(transition.getInstant());
+        }
+        for (String timestamp : samples) {
+            String expected = csvFormat.format(isoFormat.parse(timestamp));
+            String actual = App.toCsv(timestamp);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException(timestamp + " converted to " + actual + " instead of " + expected);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void timestampConverter (Blackhole bh) throws Throwable {
+        for (String timestamp : timestamps) bh.consume(App.toCsv(timestamp));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void simpleDateFormat (Blackhole bh) throws ParseException {
+        for (String timestamp : timestamps) bh.consume(csvFormat.format(isoFormat.parse(timestamp)));
+    }
+}
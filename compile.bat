@@ -1 +1 @@
-javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlUserStats.java
\ No newline at end of file
+javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar *.java
\ No newline at end of file